@@ -8,7 +8,15 @@
  */
 package com.digium.respokesdk;
 
+import com.digium.respokesdk.RestAPI.APITransport;
+
 import java.util.ArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
 
 /**
  * A global static class which provides access to the Respoke functionality.
@@ -18,6 +26,11 @@ public class Respoke {
     public final static int GUID_STRING_LENGTH = 36;
     private static Respoke _instance;
     protected ArrayList<RespokeClient> instances;
+    private ScheduledThreadPoolExecutor scheduler;  ///< The threads shared by the worker queues and timers of all clients
+    private int schedulerThreadCount = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private final RespokeTokenCache tokenCache = new RespokeTokenCache();  ///< The app tokens shared by all clients
+    private int maxConcurrentReconnects = 4;  ///< The number of clients that may be reconnecting at the same time
+    private int reconnectsInProgress;  ///< The number of clients reconnecting right now
 
     void clientConnected(RespokeClient aThis, String endpointID) {
     }
@@ -50,7 +63,7 @@ public class Respoke {
         instances = new ArrayList<RespokeClient>();
     }
 
-    public static Respoke sharedInstance() {
+    public static synchronized Respoke sharedInstance() {
         if (_instance == null) {
             _instance = new Respoke();
         }
@@ -58,7 +71,7 @@ public class Respoke {
         return _instance;
     }
 
-    public RespokeClient createClient() {
+    public synchronized RespokeClient createClient() {
 
         RespokeClient newClient = new RespokeClient();
         instances.add(newClient);
@@ -66,8 +79,106 @@ public class Respoke {
         return newClient;
     }
 
-    public void unregisterClient(RespokeClient client) {
+    public synchronized void unregisterClient(RespokeClient client) {
         instances.remove(client);
+        client.cancelEndpointSweep();
+    }
+
+    /**
+     * @return The cache of app tokens used when connecting in development mode
+     */
+    public RespokeTokenCache getTokenCache() {
+        return tokenCache;
+    }
+
+    /**
+     * Set the number of threads shared by all clients for sending requests and
+     * running timers. The thread count stays fixed no matter how many clients
+     * are created. Defaults to the number of processors, and at least 2.
+     *
+     * @param threadCount The number of threads
+     */
+    public synchronized void setSchedulerThreadCount(int threadCount) {
+        schedulerThreadCount = Math.max(1, threadCount);
+
+        if (null != scheduler) {
+            scheduler.setCorePoolSize(schedulerThreadCount);
+        }
+    }
+
+    /**
+     * Set how many clients may be reconnecting at the same time. Clients
+     * beyond the limit back off and try again later, so that a process with
+     * many clients does not flood the service with connection attempts
+     * after an outage. Defaults to 4.
+     *
+     * @param maxReconnects The number of clients that may reconnect at the same time
+     */
+    public synchronized void setMaxConcurrentReconnects(int maxReconnects) {
+        maxConcurrentReconnects = Math.max(1, maxReconnects);
+    }
+
+    public synchronized int getMaxConcurrentReconnects() {
+        return maxConcurrentReconnects;
+    }
+
+    /**
+     * Take one of the reconnect slots shared by all clients
+     *
+     * @return true if the client may reconnect now, in which case it must call reconnectFinished once the attempt is over
+     */
+    synchronized boolean tryStartReconnect() {
+        if (reconnectsInProgress >= maxConcurrentReconnects) {
+            return false;
+        }
+
+        reconnectsInProgress++;
+
+        return true;
+    }
+
+    /**
+     * Give back a reconnect slot taken with tryStartReconnect
+     */
+    synchronized void reconnectFinished() {
+        if (reconnectsInProgress > 0) {
+            reconnectsInProgress--;
+        }
+    }
+
+    /**
+     * @return The scheduler that all clients multiplex their work onto
+     */
+    synchronized ScheduledExecutorService getScheduler() {
+        if (null == scheduler) {
+            final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            scheduler = new ScheduledThreadPoolExecutor(schedulerThreadCount, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "RespokeWorker-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+        }
+
+        return scheduler;
+    }
+
+    /**
+     * Get the TLS context used for the connections to the Respoke service.
+     * It is shared by the REST transactions and the socket, so connections
+     * made with it resume the TLS sessions of earlier connections to the
+     * same host, which saves a round trip of the handshake, i.e. when the
+     * socket connects to a host that was warmed up while the token requests
+     * were in flight.
+     *
+     * @return The context, or null if TLS is not available
+     */
+    SSLContext getSSLContext() {
+        return APITransport.sharedInstance().getSSLContext();
     }
 
     public static String makeGUID() {
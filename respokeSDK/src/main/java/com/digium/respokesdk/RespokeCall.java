@@ -96,7 +96,17 @@ public class RespokeCall {
          */
         public void directConnectionAvailable(RespokeDirectConnection directConnection, RespokeEndpoint endpoint);
     }
+    private RespokeEndpoint endpoint;
+
     RespokeCall(RespokeSignalingChannel signalingChannel, JSONObject sdp, String sessionID, String connectionID, RespokeEndpoint endpoint, boolean b, Date timestamp) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * @return The remote endpoint of this call
+     */
+    public RespokeEndpoint getEndpoint() {
+        return endpoint;
     }
 
     RespokeCall(RespokeSignalingChannel signalingChannel, RespokeEndpoint aThis, boolean b) {
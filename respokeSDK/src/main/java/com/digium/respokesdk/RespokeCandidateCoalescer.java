@@ -0,0 +1,306 @@
+/**
+ * Copyright 2015, Digium, Inc. All rights reserved.
+ *
+ * This source code is licensed under The MIT License found in the LICENSE file
+ * in the root directory of this source tree.
+ *
+ * For all details and documentation: https://www.respoke.io
+ */
+package com.digium.respokesdk;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers the outgoing iceCandidates signals of a session over a short window
+ * and merges them into a single signal per destination, so that trickle ICE
+ * uses one request for a burst of candidates instead of one request each. A
+ * batch is sent early when the end of the candidates is signalled, and before
+ * any other signal of the same session so that the order of the signals is
+ * kept. Batching is off until a window is set.
+ */
+class RespokeCandidateCoalescer {
+
+    static final long DEFAULT_WINDOW_MILLIS = 0;
+
+    /**
+     * Sends the merged signals
+     */
+    interface Sink {
+
+        /**
+         * @param message The merged signal
+         * @param toEndpointID The endpoint to send it to
+         * @param completionListeners The listeners of every signal that was merged
+         */
+        void sendMergedSignal(JSONObject message, String toEndpointID, ArrayList<Respoke.TaskCompletionListener> completionListeners);
+    }
+
+    /**
+     * The candidates waiting to be sent to one destination of one session
+     */
+    private static class Batch {
+
+        final String sessionID;
+        final String toEndpointID;
+        final JSONObject message; ///< The first signal of the batch, to which the later candidates are added
+        final JSONArray candidates;
+        final ArrayList<Respoke.TaskCompletionListener> completionListeners;
+        ScheduledFuture<?> flushFuture;
+
+        Batch(String sessionID, String toEndpointID, JSONObject message, JSONArray candidates) {
+            this.sessionID = sessionID;
+            this.toEndpointID = toEndpointID;
+            this.message = message;
+            this.candidates = candidates;
+            completionListeners = new ArrayList<Respoke.TaskCompletionListener>();
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final Sink sink;
+    private final LinkedHashMap<String, Batch> batches; ///< The waiting batches, keyed by session and destination
+    private final HashSet<String> sendingSessions; ///< The sessions whose batches are being handed to the sink right now
+    private long windowMillis;
+
+    RespokeCandidateCoalescer(ScheduledExecutorService scheduler, Sink sink) {
+        this.scheduler = scheduler;
+        this.sink = sink;
+        batches = new LinkedHashMap<String, Batch>();
+        sendingSessions = new HashSet<String>();
+        windowMillis = DEFAULT_WINDOW_MILLIS;
+    }
+
+    /**
+     * @param newWindowMillis How long to gather candidates before sending them, in milliseconds, or 0 to send every signal straight away
+     */
+    synchronized void setWindow(long newWindowMillis) {
+        windowMillis = Math.max(0, newWindowMillis);
+    }
+
+    synchronized long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Take an outgoing iceCandidates signal into a batch
+     *
+     * @param sessionID The session of the signal
+     * @param toEndpointID The destination of the signal
+     * @param message The signal
+     * @param completionListener Notified once the batch containing the signal has been sent
+     *
+     * @return false if the signal was not taken and should be sent as it is
+     */
+    boolean add(final String sessionID, final String toEndpointID, JSONObject message, Respoke.TaskCompletionListener completionListener) {
+        JSONArray newCandidates = message.optJSONArray("iceCandidates");
+
+        if ((null == sessionID) || (null == newCandidates)) {
+            return false;
+        }
+
+        Batch ready = null;
+
+        synchronized (this) {
+            if (0 == windowMillis) {
+                return false;
+            }
+
+            final String key = sessionID + "|" + toEndpointID;
+            Batch batch = batches.get(key);
+            boolean endOfCandidates = message.has("finalCandidates");
+
+            try {
+                if (null == batch) {
+                    // Merge into a copy, the signal belongs to the caller
+                    JSONObject merged = new JSONObject(message, JSONObject.getNames(message));
+                    JSONArray candidates = new JSONArray();
+                    merged.put("iceCandidates", candidates);
+
+                    batch = new Batch(sessionID, toEndpointID, merged, candidates);
+                    batches.put(key, batch);
+                } else if (endOfCandidates) {
+                    batch.message.put("finalCandidates", message.get("finalCandidates"));
+                }
+            } catch (JSONException e) {
+                return false;
+            }
+
+            for (int ii = 0; ii < newCandidates.length(); ii++) {
+                batch.candidates.put(newCandidates.opt(ii));
+            }
+
+            batch.completionListeners.add(completionListener);
+
+            for (int ii = 0; (ii < newCandidates.length()) && !endOfCandidates; ii++) {
+                // An empty candidate marks the end of the candidates
+                Object eachCandidate = newCandidates.opt(ii);
+                endOfCandidates = (null == eachCandidate) || JSONObject.NULL.equals(eachCandidate)
+                        || ((eachCandidate instanceof JSONObject) && (0 == ((JSONObject) eachCandidate).optString("candidate").length()));
+            }
+
+            if (endOfCandidates) {
+                awaitSending(sessionID);
+                ready = take(key);
+
+                if (null != ready) {
+                    // Otherwise its timer sent it while this waited
+                    sendingSessions.add(sessionID);
+                }
+            } else if (null == batch.flushFuture) {
+                batch.flushFuture = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushBatch(sessionID, key);
+                    }
+                }, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (null != ready) {
+            ArrayList<Batch> readyList = new ArrayList<Batch>(1);
+            readyList.add(ready);
+            send(sessionID, readyList);
+        }
+
+        return true;
+    }
+
+    /**
+     * Send one batch once its window has passed. Called by its timer.
+     */
+    private void flushBatch(String sessionID, String key) {
+        ArrayList<Batch> ready = new ArrayList<Batch>(1);
+
+        synchronized (this) {
+            awaitSending(sessionID);
+            Batch batch = take(key);
+
+            if (null == batch) {
+                // Already sent early
+                return;
+            }
+
+            ready.add(batch);
+            sendingSessions.add(sessionID);
+        }
+
+        send(sessionID, ready);
+    }
+
+    /**
+     * Send the waiting candidates of a session now, i.e. because another
+     * signal of the session is about to be sent. Returns once they have been
+     * handed to the sink, including any batch of the session that its timer
+     * is sending, so that the other signal can not overtake them.
+     *
+     * @param sessionID The session
+     */
+    void flush(String sessionID) {
+        ArrayList<Batch> ready = new ArrayList<Batch>();
+
+        synchronized (this) {
+            awaitSending(sessionID);
+            Iterator<Batch> iterator = batches.values().iterator();
+
+            while (iterator.hasNext()) {
+                Batch eachBatch = iterator.next();
+
+                if (eachBatch.sessionID.equals(sessionID)) {
+                    cancelFlush(eachBatch);
+                    ready.add(eachBatch);
+                    iterator.remove();
+                }
+            }
+
+            if (ready.isEmpty()) {
+                return;
+            }
+
+            sendingSessions.add(sessionID);
+        }
+
+        send(sessionID, ready);
+    }
+
+    /**
+     * Forget every waiting batch, i.e. because the socket has gone away
+     *
+     * @return The listeners of the signals that were not sent, so that they may be notified
+     */
+    synchronized ArrayList<Respoke.TaskCompletionListener> clear() {
+        ArrayList<Respoke.TaskCompletionListener> unsent = new ArrayList<Respoke.TaskCompletionListener>();
+
+        for (Batch eachBatch : batches.values()) {
+            cancelFlush(eachBatch);
+            unsent.addAll(eachBatch.completionListeners);
+        }
+
+        batches.clear();
+
+        return unsent;
+    }
+
+    private Batch take(String key) {
+        Batch batch = batches.remove(key);
+
+        if (null != batch) {
+            cancelFlush(batch);
+        }
+
+        return batch;
+    }
+
+    private void cancelFlush(Batch batch) {
+        if (null != batch.flushFuture) {
+            batch.flushFuture.cancel(false);
+            batch.flushFuture = null;
+        }
+    }
+
+    /**
+     * Wait until no batch of a session is being handed to the sink. Called with the lock held, which the wait gives up.
+     */
+    private void awaitSending(String sessionID) {
+        boolean interrupted = false;
+
+        while (sendingSessions.contains(sessionID)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hand batches of a session to the sink without holding the lock, then
+     * let the next sender of the session go ahead. The session must have
+     * been marked as sending under the lock.
+     */
+    private void send(String sessionID, ArrayList<Batch> ready) {
+        try {
+            for (Batch eachBatch : ready) {
+                sink.sendMergedSignal(eachBatch.message, eachBatch.toEndpointID, eachBatch.completionListeners);
+            }
+        } finally {
+            synchronized (this) {
+                sendingSessions.remove(sessionID);
+                notifyAll();
+            }
+        }
+    }
+}
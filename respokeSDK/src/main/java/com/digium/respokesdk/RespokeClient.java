@@ -27,9 +27,19 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  *  This is a top-level interface to the API. It handles authenticating the app to the
@@ -41,24 +51,44 @@ import java.util.Iterator;
 public class RespokeClient implements RespokeSignalingChannel.Listener {
 
     protected static final String TAG = "RespokeClient: ";
-    private static final int RECONNECT_INTERVAL = 500;  ///< The exponential step interval between automatic reconnect attempts, in milliseconds
+    private static final int RECONNECT_INTERVAL = 500;  ///< The base of the exponential backoff between automatic reconnect attempts, in milliseconds
+    private static final int MAX_RECONNECT_INTERVAL = 30000;  ///< The longest backoff between automatic reconnect attempts, in milliseconds
 
     private WeakReference<Listener> listenerReference;
     private WeakReference<ResolvePresenceListener> resolveListenerReference;
     private String localEndpointID;  ///< The local endpoint ID
     protected String localConnectionID; ///< The local connection ID
     protected RespokeSignalingChannel signalingChannel;  ///< The signaling channel to use
-    private ArrayList<RespokeCall> calls;  ///< An array of the active calls
-    private HashMap<String, RespokeGroup> groups;  ///< An array of the groups this client is a member of
-    private ArrayList<RespokeEndpoint> knownEndpoints;  ///< An array of the known endpoints
+    private CopyOnWriteArrayList<RespokeCall> calls;  ///< An array of the active calls
+    private ConcurrentHashMap<String, RespokeGroup> groups;  ///< An array of the groups this client is a member of
+    private ConcurrentHashMap<String, RespokeEndpoint> knownEndpoints;  ///< The known endpoints, indexed by endpoint ID
     private Object presence;  ///< The current presence of this client
     private String applicationID;  ///< The application ID to use when connecting in development mode
     private boolean reconnect;  ///< Indicates if the client should automatically reconnect if the web socket disconnects
     private int reconnectCount;  ///< A count of how many times reconnection has been attempted
     private boolean connectionInProgress;  ///< Indicates if the client is in the middle of attempting to connect
-    private ArrayList<String> presenceRegistrationQueue; ///< An array of endpoints that need to be registered for presence updates
-    private HashMap<String, Boolean> presenceRegistered; ///< A Hash of all the endpoint IDs that have already been registered for presence updates
-    private boolean registrationTaskWaiting; ///< A flag to indicate that a task is scheduled to begin presence registration
+    private final RespokePresenceBatcher presenceBatcher; ///< Collects the endpoints that need to be registered for presence updates into batches
+    private ConcurrentHashMap<String, Boolean> presenceRegistered; ///< A Hash of all the endpoint IDs that have been registered (true) or queued for registration (false) for presence updates. Read without locking on the inbound path
+    private final Set<String> pendingUnregistration = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()); ///< The endpoint IDs evicted while their registration was in flight, to unregister once it completes
+    private final Set<String> resumedEndpoints = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()); ///< The endpoint IDs kept from the lost connection, whose connections are checked once their presence is registered again
+    private int maxRequestsInFlight = 1; ///< The number of REST requests the signaling channel may have outstanding at once
+    private int maxEndpoints; ///< The number of endpoints to keep track of before the least recently active ones are evicted, or 0 for no limit
+    private long endpointIdleTimeout; ///< How long an endpoint may be inactive before it is evicted, in milliseconds, or 0 to never evict idle endpoints
+    private ScheduledFuture<?> endpointSweepFuture; ///< The periodic task that evicts idle endpoints
+    private final Object evictionLock = new Object(); ///< Ensures only one eviction pass runs at a time
+    private volatile RespokeDispatcher dispatcher = RespokeDispatcher.INLINE; ///< Delivers the notifications to the listeners of the app
+    private RespokeDispatcher signalDispatcher; ///< Handles the inbound signals of the signaling channel, or null to handle them inline
+    private long candidateBatchWindow = RespokeCandidateCoalescer.DEFAULT_WINDOW_MILLIS; ///< How long outgoing ICE candidates are gathered before they are sent, in milliseconds
+    private final ArrayList<RespokeEndpoint> presenceBatch = new ArrayList<RespokeEndpoint>(); ///< The endpoints whose presence changed in the frame being processed
+    private final Set<RespokeGroup> groupsWithDelta = Collections.newSetFromMap(new ConcurrentHashMap<RespokeGroup, Boolean>()); ///< The groups whose membership changed in the frame being processed
+    private String connectingEndpointID; ///< The endpoint ID of the connection attempt in progress
+    private boolean usingCachedToken; ///< Indicates if the connection attempt in progress uses an app token from the token cache
+    private ConnectCompletionListener cachedTokenListener; ///< The listener of the connection attempt that uses a cached app token, for when the token is rejected
+    private volatile RespokeConnectMetrics connectMetrics; ///< The timings of the latest connection attempt
+    private volatile RespokeOutbox outbox; ///< Holds the requests made while reconnecting, or null to fail them
+    private final AtomicBoolean holdsReconnectSlot = new AtomicBoolean(); ///< Indicates if this client holds one of the reconnect slots shared by all clients
+    private volatile boolean resuming; ///< Indicates if the groups and endpoints of the lost connection are to be restored once reconnected
+    private volatile long presenceThrottleWindow; ///< The minimum time between presence notifications of one endpoint, in milliseconds, or 0 to notify every change
 
     public String baseURL = APITransaction.RESPOKE_BASE_URL;  ///< The base url of the Respoke service to use
 
@@ -130,6 +160,27 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
     }
 
 
+    /**
+     * A client listener that also receives the presence changes of many endpoints as one batch, i.e. the initial
+     * presence of all the endpoints of one presence registration, instead of relying on one onPresence callback per
+     * endpoint
+     */
+    public interface PresenceBatchListener extends Listener {
+
+
+        /**
+         *  Receive the endpoints whose presence was updated by one registration response or one frame from the server.
+         *  The new presence of each endpoint is available from its presence field. The onPresence callbacks of the
+         *  endpoint listeners are still made. An endpoint whose change is held back by the presence throttle window
+         *  is left out, and arrives in a batch of its own once the window has passed.
+         *
+         *  @param endpoints  The endpoints whose presence was updated
+         *  @param sender     The RespokeClient that received the updates
+         */
+        void onPresenceBatch(ArrayList<RespokeEndpoint> endpoints, RespokeClient sender);
+    }
+
+
     /**
      * A listener interface to receive a notification that the task to join the groups has completed
      */
@@ -169,11 +220,16 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
 
 
     public RespokeClient() {
-        calls = new ArrayList<RespokeCall>();
-        groups = new HashMap<String, RespokeGroup>();
-        knownEndpoints = new ArrayList<RespokeEndpoint>();
-        presenceRegistrationQueue = new ArrayList<String>();
-        presenceRegistered = new HashMap<String, Boolean>();
+        calls = new CopyOnWriteArrayList<RespokeCall>();
+        groups = new ConcurrentHashMap<String, RespokeGroup>();
+        knownEndpoints = new ConcurrentHashMap<String, RespokeEndpoint>();
+        presenceRegistered = new ConcurrentHashMap<String, Boolean>();
+        presenceBatcher = new RespokePresenceBatcher(Respoke.sharedInstance().getScheduler(), new RespokePresenceBatcher.Sink() {
+            @Override
+            public void registerBatch(ArrayList<String> endpointIDs) {
+                registerPresenceBatch(endpointIDs);
+            }
+        });
     }
 
 
@@ -196,22 +252,352 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
     }
     
     void queueRunnable(Runnable r){
-        r.run();
+        queueRunnable(this, r);
+    }
+
+
+    /**
+     *  Notify a listener of the app through the dispatcher
+     *
+     *  @param key  Notifications with equal keys are delivered in order, i.e. the ID of the endpoint or group concerned
+     *  @param r    The notification
+     */
+    void queueRunnable(Object key, Runnable r) {
+        dispatcher.dispatch(key, r);
+    }
+
+
+    /**
+     *  Notify a listener of the app from a timer. Timers run on the shared scheduler, which must not run application
+     *  code, so with inline delivery the notification is handed to the socket thread that delivers the other events
+     *
+     *  @param key  Notifications with equal keys are delivered in order, i.e. the ID of the endpoint or group concerned
+     *  @param r    The notification
+     */
+    void queueTimedRunnable(Object key, Runnable r) {
+        dispatcher.dispatchDeferred(key, r);
+    }
+
+
+    /**
+     *  Set the dispatcher that decides on which thread the listeners of the app are notified, for this client and its
+     *  groups and endpoints. The default calls listeners inline on the network thread, so a slow listener delays every
+     *  later event. Use an ORDERED or POOLED dispatcher to keep application code off the network thread.
+     *
+     *  @param newDispatcher  The dispatcher to use, or null for inline delivery
+     */
+    public void setDispatcher(RespokeDispatcher newDispatcher) {
+        dispatcher = (null != newDispatcher) ? newDispatcher : RespokeDispatcher.INLINE;
+
+        if (null != signalingChannel) {
+            signalingChannel.setCompletionDispatcher(dispatcher);
+        }
+
+        RespokeOutbox heldRequests = outbox;
+        if (null != heldRequests) {
+            heldRequests.setDispatcher(dispatcher);
+        }
+    }
+
+
+    public RespokeDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+
+    /**
+     *  Set the dispatcher that handles inbound call signals (offers, answers, ICE candidates and hangups). Signals are
+     *  keyed by session, so a POOLED dispatcher processes the signals of each call strictly in order while different
+     *  calls are processed in parallel. Signals must not be dropped, so a dispatcher with threads must use the BLOCK
+     *  overflow policy. Applies to the current connection and to any future (re)connections.
+     *
+     *  @param newDispatcher  The dispatcher to use, or null to handle signals inline on the socket thread
+     *
+     *  @throws IllegalArgumentException if the dispatcher may drop signals
+     */
+    public void setSignalDispatcher(RespokeDispatcher newDispatcher) {
+        RespokeSignalingChannel.checkSignalDispatcher(newDispatcher);
+        signalDispatcher = newDispatcher;
+
+        if (null != signalingChannel) {
+            signalingChannel.setSignalDispatcher(signalDispatcher);
+        }
+    }
+
+
+    /**
+     *  Set how long the outgoing ICE candidates of a call are gathered before they are sent to the other party as a
+     *  single signal. Batching is off by default. Applies to the current connection and to any future (re)connections.
+     *
+     *  @param windowMillis  The window in milliseconds, or 0 to send each candidate signal straight away
+     */
+    public void setCandidateBatchWindow(long windowMillis) {
+        candidateBatchWindow = Math.max(0, windowMillis);
+
+        if (null != signalingChannel) {
+            signalingChannel.setCandidateBatchWindow(candidateBatchWindow);
+        }
+    }
+
+
+    /**
+     *  @param shard  The index of the signal dispatcher thread to inspect
+     *
+     *  @return The number of inbound signals waiting for this thread, or 0 if signals are handled inline
+     */
+    public int getSignalQueueDepth(int shard) {
+        RespokeDispatcher current = signalDispatcher;
+
+        if ((null != current) && (shard < current.getShardCount())) {
+            return current.getShardQueueDepth(shard);
+        }
+
+        return 0;
+    }
+
+
+    /**
+     *  Set how many REST requests may be waiting for a response from the server at the same time. The default of 1 sends
+     *  one request at a time, larger values pipeline requests over the socket. Applies to the current connection and to
+     *  any future (re)connections.
+     *
+     *  @param maxRequests The number of requests that may be outstanding at once
+     */
+    public void setMaxRequestsInFlight(int maxRequests) {
+        maxRequestsInFlight = Math.max(1, maxRequests);
+
+        if (null != signalingChannel) {
+            signalingChannel.setMaxRequestsInFlight(maxRequestsInFlight);
+        }
+    }
+
+
+    public int getMaxRequestsInFlight() {
+        return maxRequestsInFlight;
+    }
+
+
+    /**
+     *  Get the number of REST requests that may be sent right now without being delayed to stay within the rate limit
+     *  of the Respoke service. Requests beyond the budget are not rejected, they are paced, so apps may use this to
+     *  hold back low value traffic when the budget is running out.
+     *
+     *  @return The remaining budget, or -1 if not connected or the rate limit is not known yet
+     */
+    public int getRateLimitBudget() {
+        RespokeSignalingChannel channel = signalingChannel;
+
+        if (null != channel) {
+            return channel.getRateLimitBudget();
+        }
+
+        return -1;
     }
 
+
+    /**
+     *  @param priority The priority class to inspect
+     *
+     *  @return The number of REST requests of this priority waiting for their turn to be sent, or 0 if not connected
+     */
+    public int getQueueDepth(RespokeWorkerThread.Priority priority) {
+        RespokeSignalingChannel channel = signalingChannel;
+
+        if (null != channel) {
+            return channel.getQueueDepth(priority);
+        }
+
+        return 0;
+    }
+
+
+    /**
+     *  @param priority The priority class to inspect
+     *
+     *  @return The average time REST requests of this priority waited for their turn to be sent, in milliseconds
+     */
+    public long getAverageQueueWait(RespokeWorkerThread.Priority priority) {
+        RespokeSignalingChannel channel = signalingChannel;
+
+        if (null != channel) {
+            return channel.getAverageQueueWait(priority);
+        }
+
+        return 0;
+    }
+
+    /**
+     *  Limit the number of endpoints the client keeps track of, to cap its memory use on long lived connections that
+     *  see many endpoints. When the limit is exceeded the least recently active endpoints are evicted, and endpoints
+     *  that have been idle for longer than the idle timeout are evicted periodically while the client is connected.
+     *  Endpoints with an active call, a direct connection or a listener set by the app, and the endpoints of the
+     *  members of joined groups, are never evicted.
+     *
+     *  The client stops observing the presence of evicted endpoints. A new instance is created when an evicted
+     *  endpoint is heard from again.
+     *
+     *  @param newMaxEndpoints    The number of endpoints to keep, or 0 for no limit
+     *  @param idleTimeoutMillis  Evict endpoints that have been inactive for this long, or 0 to keep idle endpoints
+     */
+    public synchronized void setEndpointCacheLimits(int newMaxEndpoints, long idleTimeoutMillis) {
+        maxEndpoints = Math.max(0, newMaxEndpoints);
+        endpointIdleTimeout = Math.max(0, idleTimeoutMillis);
+
+        cancelEndpointSweep();
+
+        if (isConnected()) {
+            scheduleEndpointSweep();
+        }
+
+        if ((maxEndpoints > 0) && (knownEndpoints.size() > maxEndpoints)) {
+            evictEndpoints(maxEndpoints, null);
+        }
+    }
+
+
+    /**
+     *  Start evicting idle endpoints periodically, if there is an idle timeout and the sweep is not running yet
+     */
+    private synchronized void scheduleEndpointSweep() {
+        if ((endpointIdleTimeout > 0) && (null == endpointSweepFuture)) {
+            long sweepInterval = Math.max(1000, endpointIdleTimeout / 2);
+
+            endpointSweepFuture = Respoke.sharedInstance().getScheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    evictEndpoints(0, null);
+                }
+            }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    /**
+     *  Stop the periodic eviction of idle endpoints, so that the shared scheduler no longer holds on to this client
+     */
+    synchronized void cancelEndpointSweep() {
+        if (null != endpointSweepFuture) {
+            endpointSweepFuture.cancel(false);
+            endpointSweepFuture = null;
+        }
+    }
+
+
+    /**
+     *  Configure how endpoints are batched when registering for their presence. Endpoints seen within the window of
+     *  the first one are registered with a single request, and a request is sent as soon as a batch is full, so that
+     *  loading a large group roster results in a handful of requests.
+     *
+     *  @param windowMillis  How long to wait for more endpoints before registering a batch, in milliseconds
+     *  @param maxBatchSize  The largest number of endpoints to register with one request
+     */
+    public void setPresenceRegistrationWindow(long windowMillis, int maxBatchSize) {
+        presenceBatcher.setWindow(windowMillis, maxBatchSize);
+    }
+
+
+    /**
+     *  Limit how often the listener of each endpoint is notified of presence changes. Changes that arrive within the
+     *  window of the last notification are coalesced and only the latest presence is delivered when the window has
+     *  passed. Changes to or from unavailable are always delivered immediately. This keeps endpoints that flap between
+     *  available and away from dominating the CPU on clients that observe large rosters.
+     *
+     *  @param windowMillis  The minimum time between notifications of one endpoint, in milliseconds, or 0 to notify every change
+     */
+    public void setPresenceThrottleWindow(long windowMillis) {
+        presenceThrottleWindow = Math.max(0, windowMillis);
+    }
+
+
+    public long getPresenceThrottleWindow() {
+        return presenceThrottleWindow;
+    }
+
+
+    /**
+     *  Get the time taken by each stage of the latest connection attempt, i.e. to log how long connecting took and
+     *  where that time went.
+     *
+     *  @return The timings, or null if connect has not been called
+     */
+    public RespokeConnectMetrics getConnectMetrics() {
+        return connectMetrics;
+    }
+
+
+    /**
+     *  Set the outbox that holds the messages and other requests made while the client is reconnecting, or that were
+     *  still waiting to be sent when the connection was lost, and sends them once it has reconnected. Give the outbox a
+     *  journal to keep the requests across a restart of the app. Applies to the current connection and to any future
+     *  (re)connections. There is no outbox by default.
+     *
+     *  @param newOutbox  The outbox to use, or null to fail requests made while not connected straight away
+     */
+    public void setOutbox(RespokeOutbox newOutbox) {
+        outbox = newOutbox;
+
+        if (null != newOutbox) {
+            newOutbox.setDispatcher(dispatcher);
+        }
+
+        if ((null != newOutbox) && isConnected()) {
+            newOutbox.setOwner(applicationID, localEndpointID);
+        }
+
+        if (null != signalingChannel) {
+            signalingChannel.setOutbox(newOutbox);
+        }
+    }
+
+
+    public RespokeOutbox getOutbox() {
+        return outbox;
+    }
+
+
+    /**
+     *  @return The number of endpoints the client is currently keeping track of
+     */
+    public int getKnownEndpointCount() {
+        return knownEndpoints.size();
+    }
+
+
     public void connect(String endpointID, String appID, boolean shouldReconnect, final Object initialPresence, final ConnectCompletionListener completionListener) {
         if ((endpointID != null) && (appID != null) && (endpointID.length() > 0) && (appID.length() > 0)) {
             connectionInProgress = true;
             reconnect = shouldReconnect;
             applicationID = appID;
+            acceptRequests();
+            connectingEndpointID = endpointID;
+            final RespokeConnectMetrics metrics = new RespokeConnectMetrics();
+            connectMetrics = metrics;
+
+            String cachedToken = Respoke.sharedInstance().getTokenCache().get(appID, endpointID);
+
+            if (null != cachedToken) {
+                // Still valid, so skip the token and session-token requests and go straight to the socket
+                Log.debug(TAG + "Connecting with a cached app token");
+                usingCachedToken = true;
+                cachedTokenListener = completionListener;
+                metrics.setUsedCachedToken(true);
+                openSignalingChannel(cachedToken, initialPresence);
+                return;
+            }
+
+            usingCachedToken = false;
+
+            // Get the socket host into the DNS and TLS session caches while the token requests are in flight
+            RespokeSignalingChannel.warmUp(metrics);
 
             APIGetToken request = new APIGetToken(baseURL) {
                 @Override
                 public void transactionComplete() {
                     super.transactionComplete();
+                    metrics.stageCompleted(RespokeConnectMetrics.Stage.TOKEN);
 
                     if (success) {
-                        connect(this.token, initialPresence, new ConnectCompletionListener() {
+                        openSession(this.token, initialPresence, new ConnectCompletionListener() {
                             @Override
                             public void onError(final String errorMessage) {
                                 connectionInProgress = false;
@@ -229,6 +615,7 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
 
             request.appID = appID;
             request.endpointID = endpointID;
+            metrics.stageStarted(RespokeConnectMetrics.Stage.TOKEN);
             request.go();
         } else {
             postConnectError(completionListener, "AppID and endpointID must be specified");
@@ -238,31 +625,107 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
 
     public void connect(String tokenID, final Object initialPresence, final ConnectCompletionListener completionListener) {
         if ((tokenID != null) && (tokenID.length() > 0)) {
-            connectionInProgress = true;
+            // Brokered mode, where the app obtained the token itself. Forget the IDs of an earlier development mode
+            // connection, so that the app token of this session is not cached under them
+            applicationID = null;
+            connectingEndpointID = null;
+            usingCachedToken = false;
+            connectMetrics = new RespokeConnectMetrics();
+            RespokeSignalingChannel.warmUp(connectMetrics);
+
+            openSession(tokenID, initialPresence, completionListener);
+        } else {
+            postConnectError(completionListener, "TokenID must be specified");
+        }
+    }
 
-            APIDoOpen request = new APIDoOpen( baseURL) {
-                @Override
-                public void transactionComplete() {
-                    super.transactionComplete();
 
-                    if (success) {
-                        // Remember the presence value to set once connected
-                        presence = initialPresence;
+    /**
+     *  Exchange a token for an app token and open the signaling channel with it
+     *
+     *  @param tokenID             The token, obtained from the server in development mode or by the app in brokered mode
+     *  @param initialPresence     The presence to set once connected
+     *  @param completionListener  The listener to notify if the session could not be opened
+     */
+    private void openSession(String tokenID, final Object initialPresence, final ConnectCompletionListener completionListener) {
+        connectionInProgress = true;
+        acceptRequests();
+        final RespokeConnectMetrics metrics = connectMetrics;
+        // The IDs the app token is cached under, taken now so that a later connection attempt cannot change them
+        final String cacheAppID = applicationID;
+        final String cacheEndpointID = connectingEndpointID;
+
+        APIDoOpen request = new APIDoOpen( baseURL) {
+            @Override
+            public void transactionComplete() {
+                super.transactionComplete();
+                metrics.stageCompleted(RespokeConnectMetrics.Stage.SESSION_TOKEN);
 
-                        signalingChannel = new RespokeSignalingChannel(appToken, RespokeClient.this, baseURL);
-                        signalingChannel.authenticate();
-                    } else {
-                        connectionInProgress = false;
+                if (success) {
+                    if ((null != cacheAppID) && (null != cacheEndpointID)) {
+                        Respoke.sharedInstance().getTokenCache().put(cacheAppID, cacheEndpointID, appToken, APIGetToken.DEFAULT_TTL);
+                    }
 
-                        postConnectError(completionListener, this.errorMessage);
+                    openSignalingChannel(appToken, initialPresence);
+                } else {
+                    connectionInProgress = false;
+
+                    postConnectError(completionListener, this.errorMessage);
+                }
+            }
+        };
+
+        request.tokenID = tokenID;
+        metrics.stageStarted(RespokeConnectMetrics.Stage.SESSION_TOKEN);
+        request.go();
+    }
+
+
+    private void openSignalingChannel(String appToken, Object initialPresence) {
+        // Remember the presence value to set once connected
+        presence = initialPresence;
+
+        signalingChannel = new RespokeSignalingChannel(appToken, RespokeClient.this, baseURL);
+        signalingChannel.setMaxRequestsInFlight(maxRequestsInFlight);
+        signalingChannel.setSignalDispatcher(signalDispatcher);
+        signalingChannel.setCandidateBatchWindow(candidateBatchWindow);
+        signalingChannel.setConnectMetrics(connectMetrics);
+        signalingChannel.setOutbox(outbox);
+        signalingChannel.setCompletionDispatcher(dispatcher);
+
+        try {
+            // Sent along with the registration of the connection rather than after it has been acknowledged
+            signalingChannel.setInitialPresence(presenceData(initialPresence), new RespokeSignalingChannel.RESTListener() {
+                @Override
+                public void onSuccess(Object response) {
+                    if (null == presence) {
+                        presence = "available";
                     }
                 }
-            };
 
-            request.tokenID = tokenID;
-            request.go();
-        } else {
-            postConnectError(completionListener, "TokenID must be specified");
+                @Override
+                public void onError(String errorMessage) {
+                    // The server may not have processed the registration yet, so set the presence again now that it has
+                    Log.debug(TAG + "Initial presence failed, setting it again: " + errorMessage);
+                    setPresence(presence, null);
+                }
+            });
+        } catch (JSONException e) {
+            Log.debug(TAG + "Error encoding presence to json");
+        }
+
+        signalingChannel.authenticate();
+    }
+
+
+    /**
+     *  Let the outbox hold requests again, after a disconnect that was not going to be followed by a reconnect
+     */
+    private void acceptRequests() {
+        RespokeOutbox heldRequests = outbox;
+
+        if (null != heldRequests) {
+            heldRequests.setAccepting(true);
         }
     }
 
@@ -280,10 +743,17 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
 
 
     public void disconnect() {
+        boolean wasResuming = resuming;
         reconnect = false;
+        resuming = false;
+        finishReconnect();
+        cancelEndpointSweep();
 
         if (null != signalingChannel) {
             signalingChannel.disconnect();
+        } else if (wasResuming) {
+            // Waiting to reconnect, so the channel is gone and nothing else will drop what was kept for the next connection
+            abandonSession();
         }
     }
 
@@ -359,17 +829,7 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
             RespokeEndpoint endpoint = getEndpoint(endpointID, skipCreate);
 
             if (null != endpoint) {
-                for (RespokeConnection eachConnection : endpoint.connections) {
-                    if (eachConnection.connectionID.equals(connectionID)) {
-                        connection = eachConnection;
-                        break;
-                    }
-                }
-
-                if ((null == connection) && (!skipCreate)) {
-                    connection = new RespokeConnection(signalingChannel, connectionID, endpoint);
-                    endpoint.connections.add(connection);
-                }
+                connection = endpoint.getConnection(connectionID, skipCreate);
             }
         }
 
@@ -377,20 +837,90 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
     }
 
 
+    /**
+     *  Find the connection with the specified ID, if the client knows about it, without creating it or registering for
+     *  the presence of its endpoint. This is the lookup to use on the inbound path.
+     *
+     *  @param connectionID  The ID of the connection
+     *  @param endpointID    The ID of the endpoint to which the connection belongs
+     *
+     *  @return The connection, or null if it is not known
+     */
+    RespokeConnection lookupConnection(String connectionID, String endpointID) {
+        RespokeEndpoint endpoint = lookupEndpoint(endpointID);
+
+        if ((null != endpoint) && (null != connectionID)) {
+            return endpoint.getConnection(connectionID, true);
+        }
+
+        return null;
+    }
+
+
+    /**
+     *  Find the endpoint with the specified ID, if the client knows about it, without creating it or registering for
+     *  its presence. This is the lookup to use on the inbound path.
+     *
+     *  @param endpointID  The ID of the endpoint
+     *
+     *  @return The endpoint, or null if it is not known
+     */
+    RespokeEndpoint lookupEndpoint(String endpointID) {
+        RespokeEndpoint endpoint = null;
+
+        if (null != endpointID) {
+            endpoint = knownEndpoints.get(endpointID);
+
+            if (null != endpoint) {
+                endpoint.touch();
+            }
+        }
+
+        return endpoint;
+    }
+
+
+    /**
+     *  Find the endpoint an inbound event comes from. A known endpoint is returned without side effects. An unknown one
+     *  is created and registered for presence, since the listener of the app must receive it, i.e. the sender of a
+     *  first message or call.
+     *
+     *  @param endpointID  The ID of the endpoint
+     *
+     *  @return The endpoint, or null if no ID was given
+     */
+    private RespokeEndpoint inboundEndpoint(String endpointID) {
+        RespokeEndpoint endpoint = lookupEndpoint(endpointID);
+
+        if ((null == endpoint) && (null != endpointID)) {
+            endpoint = getEndpoint(endpointID, false);
+        }
+
+        return endpoint;
+    }
+
+
     public RespokeEndpoint getEndpoint(String endpointIDToFind, boolean skipCreate) {
         RespokeEndpoint endpoint = null;
 
         if (null != endpointIDToFind) {
-            for (RespokeEndpoint eachEndpoint : knownEndpoints) {
-                if (eachEndpoint.getEndpointID().equals(endpointIDToFind)) {
-                    endpoint = eachEndpoint;
-                    break;
-                }
-            }
+            endpoint = knownEndpoints.get(endpointIDToFind);
 
             if ((null == endpoint) && (!skipCreate)) {
-                endpoint = new RespokeEndpoint(signalingChannel, endpointIDToFind, this);
-                knownEndpoints.add(endpoint);
+                RespokeEndpoint newEndpoint = new RespokeEndpoint(signalingChannel, endpointIDToFind, this);
+                endpoint = knownEndpoints.putIfAbsent(endpointIDToFind, newEndpoint);
+
+                if (null == endpoint) {
+                    endpoint = newEndpoint;
+
+                    int limit = maxEndpoints;
+                    if ((limit > 0) && (knownEndpoints.size() > limit)) {
+                        // Evict a little more than needed so that the next eviction pass is some time away
+                        evictEndpoints(Math.max(1, limit - (limit / 10)), endpoint);
+                    }
+                }
+            } else if (null != endpoint) {
+                endpoint.touch();
             }
 
             if (null != endpoint) {
@@ -420,22 +950,12 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
 
     public void setPresence(Object newPresence, final Respoke.TaskCompletionListener completionListener) {
         if (isConnected()) {
-            Object presenceToSet = newPresence;
-
-            if (null == presenceToSet) {
-                presenceToSet = "available";
-            }
-
-            JSONObject typeData = new JSONObject();
-            JSONObject data = new JSONObject();
-
             try {
-                typeData.put("type", presenceToSet);
-                data.put("presence", typeData);
-
-                final Object finalPresence = presenceToSet;
+                JSONObject data = presenceData(newPresence);
+                final Object finalPresence = (null != newPresence) ? newPresence : "available";
 
-                signalingChannel.sendRESTMessage("post", "/v1/presence", data, new RespokeSignalingChannel.RESTListener() {
+                // Only the latest presence is worth sending if the requests are held while reconnecting
+                signalingChannel.sendRESTMessage("post", "/v1/presence", data, RespokeWorkerThread.Priority.PRESENCE, "presence", 0, new RespokeSignalingChannel.RESTListener() {
                     @Override
                     public void onSuccess(Object response) {
                         presence = finalPresence;
@@ -457,6 +977,22 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
     }
 
 
+    /**
+     *  @param newPresence  The presence to set, or null for available
+     *
+     *  @return The body of the request that sets the presence
+     */
+    private static JSONObject presenceData(Object newPresence) throws JSONException {
+        JSONObject typeData = new JSONObject();
+        JSONObject data = new JSONObject();
+
+        typeData.put("type", (null != newPresence) ? newPresence : "available");
+        data.put("presence", typeData);
+
+        return data;
+    }
+
+
     public Object getPresence() {
         return presence;
     }
@@ -466,29 +1002,61 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
         if (null != applicationID) {
             reconnectCount++;
 
-            new java.util.Timer().schedule(
-                new java.util.TimerTask() {
+            Respoke.sharedInstance().getScheduler().schedule(
+                new Runnable() {
                     @Override
                     public void run() {
                         actuallyReconnect();
                     }
                 },
-                RECONNECT_INTERVAL * (reconnectCount - 1)
+                reconnectDelay(reconnectCount), TimeUnit.MILLISECONDS
             );
         }
     }
 
 
+    /**
+     *  Pick the delay before a reconnect attempt at random, up to a ceiling that doubles with every attempt. The
+     *  randomness spreads out the clients that lost their connections at the same moment, i.e. in a service outage.
+     *
+     *  @param attempt  The number of the attempt, starting at 1
+     *
+     *  @return The delay in milliseconds
+     */
+    static long reconnectDelay(int attempt) {
+        long ceiling = Math.min(MAX_RECONNECT_INTERVAL, (long) RECONNECT_INTERVAL << Math.min(Math.max(0, attempt - 1), 16));
+
+        return (long) (ThreadLocalRandom.current().nextDouble() * ceiling);
+    }
+
+
+    /**
+     *  Give back the reconnect slot of this client, if it holds one
+     */
+    private void finishReconnect() {
+        if (holdsReconnectSlot.compareAndSet(true, false)) {
+            Respoke.sharedInstance().reconnectFinished();
+        }
+    }
+
+
     private void actuallyReconnect() {
         if (((null == signalingChannel) || !signalingChannel.connected) && reconnect) {
             if (connectionInProgress) {
                 // The client app must have initiated a connection manually during the timeout period. Try again later
                 performReconnect();
+            } else if (!holdsReconnectSlot.get() && !Respoke.sharedInstance().tryStartReconnect()) {
+                // Too many clients are reconnecting already. Back off further and try again later
+                Log.debug(TAG + "Reconnect deferred, too many clients reconnecting");
+                performReconnect();
             } else {
+                holdsReconnectSlot.set(true);
                 Log.debug(TAG+"Trying to reconnect...");
                 connect(localEndpointID, applicationID, reconnect, presence, new ConnectCompletionListener() {
                     @Override
                     public void onError(final String errorMessage) {
+                        finishReconnect();
+
                         // A REST API call failed. Socket errors are handled in the onError callback
                         queueRunnable(new Runnable() {
                             @Override
@@ -509,102 +1077,298 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
     }
 
 
+    /**
+     *  Evict the least recently active endpoints that are not pinned, until at most the target number of endpoints
+     *  are left, as well as every endpoint that has been idle for longer than the idle timeout.
+     *
+     *  @param targetSize  The number of endpoints to keep, or 0 to only evict idle endpoints
+     *  @param keep        An endpoint that must not be evicted, i.e. because it has just been created, or null
+     */
+    private void evictEndpoints(int targetSize, RespokeEndpoint keep) {
+        ArrayList<RespokeEndpoint> evicted = new ArrayList<RespokeEndpoint>();
+
+        synchronized (evictionLock) {
+            // The endpoints of calls and of group members are in use, so they are kept
+            HashSet<RespokeEndpoint> usedEndpoints = new HashSet<RespokeEndpoint>();
+            for (RespokeCall eachCall : calls) {
+                usedEndpoints.add(eachCall.getEndpoint());
+            }
+
+            for (RespokeGroup eachGroup : groups.values()) {
+                eachGroup.addMemberEndpointsTo(usedEndpoints);
+            }
+
+            ArrayList<RespokeEndpoint> candidates = new ArrayList<RespokeEndpoint>();
+            for (RespokeEndpoint eachEndpoint : knownEndpoints.values()) {
+                if ((eachEndpoint != keep) && !eachEndpoint.isPinned() && !usedEndpoints.contains(eachEndpoint)) {
+                    candidates.add(eachEndpoint);
+                }
+            }
+
+            // Least recently active first
+            Collections.sort(candidates, new Comparator<RespokeEndpoint>() {
+                @Override
+                public int compare(RespokeEndpoint lhs, RespokeEndpoint rhs) {
+                    long lhsActivity = lhs.getLastActivity();
+                    long rhsActivity = rhs.getLastActivity();
+                    return (lhsActivity < rhsActivity) ? -1 : ((lhsActivity == rhsActivity) ? 0 : 1);
+                }
+            });
+
+            int excess = (targetSize > 0) ? (knownEndpoints.size() - targetSize) : 0;
+            long idleCutoff = (endpointIdleTimeout > 0) ? (System.currentTimeMillis() - endpointIdleTimeout) : Long.MIN_VALUE;
+
+            for (RespokeEndpoint eachEndpoint : candidates) {
+                if ((excess <= 0) && (eachEndpoint.getLastActivity() >= idleCutoff)) {
+                    // The remaining candidates are all more recently active
+                    break;
+                }
+
+                if (knownEndpoints.remove(eachEndpoint.getEndpointID(), eachEndpoint)) {
+                    evicted.add(eachEndpoint);
+                    excess--;
+                }
+            }
+        }
+
+        if (evicted.size() > 0) {
+            Log.debug(TAG + "Evicted " + evicted.size() + " endpoints from the cache");
+
+            ArrayList<String> unregisterList = new ArrayList<String>();
+            for (RespokeEndpoint eachEndpoint : evicted) {
+                String endpointID = eachEndpoint.getEndpointID();
+                boolean wasQueued = presenceBatcher.remove(endpointID);
+                Boolean registered = presenceRegistered.remove(endpointID);
+
+                if (Boolean.TRUE.equals(registered)) {
+                    unregisterList.add(endpointID);
+                } else if (Boolean.FALSE.equals(registered) && !wasQueued) {
+                    // The registration is in flight, so unregister the endpoint once it has completed
+                    pendingUnregistration.add(endpointID);
+                }
+            }
+
+            unregisterPresence(unregisterList);
+        }
+    }
+
+
+    /**
+     *  Stop observing the presence of endpoints the client no longer keeps track of
+     *
+     *  @param endpointIDs  The endpoint IDs to unregister
+     */
+    private void unregisterPresence(ArrayList<String> endpointIDs) {
+        RespokeSignalingChannel channel = signalingChannel;
+        if ((endpointIDs.size() > 0) && (null != channel) && channel.connected) {
+            channel.unregisterPresence(endpointIDs, new RespokeSignalingChannel.RESTListener() {
+                @Override
+                public void onSuccess(Object response) {
+                    // do nothing
+                }
+
+                @Override
+                public void onError(String errorMessage) {
+                    Log.debug(TAG + "Error unregistering presence: " + errorMessage);
+                }
+            });
+        }
+    }
+
+
     private void queuePresenceRegistration(String endpointID) {
-        if (null != endpointID) {
-            Boolean shouldSpawnRegistrationTask = false;
+        // Endpoints that are already registered or queued are the common case on the inbound path, so check them
+        // without locking. An endpoint maps to false while its registration is queued or in flight.
+        if ((null != endpointID) && !presenceRegistered.containsKey(endpointID)
+                && (null == presenceRegistered.putIfAbsent(endpointID, false))) {
+            // Seen again after it was evicted, so keep the registration that may still be in flight
+            pendingUnregistration.remove(endpointID);
+            presenceBatcher.add(endpointID);
+        }
+    }
+
+
+    /**
+     *  Register a batch of endpoints for presence updates. Called by the presence batcher.
+     *
+     *  @param endpointIDsToRegister  The endpoint IDs to register
+     */
+    private void registerPresenceBatch(final ArrayList<String> endpointIDsToRegister) {
+        RespokeSignalingChannel channel = signalingChannel;
+
+        if ((null == channel) || !channel.connected) {
+            for (String eachID : endpointIDsToRegister) {
+                presenceRegistered.remove(eachID, false);
+            }
+
+            return;
+        }
 
-            synchronized (this) {
-                Boolean alreadyRegistered = presenceRegistered.get(endpointID);
-                if ((null == alreadyRegistered) || !alreadyRegistered) {
-                    presenceRegistrationQueue.add(endpointID);
+        channel.registerPresence(endpointIDsToRegister, new RespokeSignalingChannel.RegisterPresenceListener() {
+            @Override
+            public void onSuccess(JSONArray initialPresenceData) {
+                // Indicate that registration was successful for each endpoint ID in the list
+                for (String eachID : endpointIDsToRegister) {
+                    // Endpoints that were evicted while the registration was in flight are no longer tracked
+                    presenceRegistered.replace(eachID, false, true);
+                }
 
-                    // If a Runnable to register presence has not already been scheduled, note that one will be shortly
-                    if (!registrationTaskWaiting) {
-                        shouldSpawnRegistrationTask = true;
-                        registrationTaskWaiting = true;
+                ArrayList<String> evictedIDs = new ArrayList<String>();
+                for (String eachID : endpointIDsToRegister) {
+                    if (pendingUnregistration.remove(eachID)) {
+                        evictedIDs.add(eachID);
                     }
                 }
-            }
 
-            if (shouldSpawnRegistrationTask) {
-                // Schedule a Runnable to register presence on the next context switch, which should allow multiple subsequent calls to queuePresenceRegistration to get batched into a single socket transaction for efficiency
-                queueRunnable(new Runnable() {
-                    @Override
-                    public void run() {
-                        final HashMap<String, Boolean> endpointIDMap = new HashMap<String, Boolean>();
-
-                        synchronized (this) {
-                            // Build a list of the endpointIDs that have been scheduled for registration, and have not already been taken care of by a previous loop of this task
-                            while (presenceRegistrationQueue.size() > 0) {
-                                String nextEndpointID = presenceRegistrationQueue.remove(0);
-                                Boolean alreadyRegistered = presenceRegistered.get(nextEndpointID);
-                                if ((null == alreadyRegistered) || !alreadyRegistered) {
-                                    endpointIDMap.put(nextEndpointID, true);
-                                }
-                            }
+                unregisterPresence(evictedIDs);
 
-                            // Now that the batch of endpoint IDs to register has been determined, indicate to the client that any new registration calls should schedule a new Runnable
-                            registrationTaskWaiting = false;
-                        }
+                // The connections the server reported for the endpoints kept from the lost connection
+                HashMap<String, Set<String>> liveConnections = new HashMap<String, Set<String>>();
 
-                        // Build an array from the map keySet to ensure there are no duplicates in the list
-                        final ArrayList<String> endpointIDsToRegister = new ArrayList<String>(endpointIDMap.keySet());
+                if (null != initialPresenceData) {
+                    for (int ii = 0; ii < initialPresenceData.length(); ii++) {
+                        try {
+                            JSONObject eachEndpointData = (JSONObject) initialPresenceData.get(ii);
+                            String dataEndpointID = eachEndpointData.getString("endpointId");
+                            RespokeEndpoint endpoint = lookupEndpoint(dataEndpointID);
 
-                        if ((endpointIDsToRegister.size() > 0) && isConnected()) {
-                            signalingChannel.registerPresence(endpointIDsToRegister, new RespokeSignalingChannel.RegisterPresenceListener() {
-                                @Override
-                                public void onSuccess(JSONArray initialPresenceData) {
-                                    // Indicate that registration was successful for each endpoint ID in the list
-                                    synchronized (RespokeClient.this) {
-                                        for (String eachID : endpointIDsToRegister) {
-                                            presenceRegistered.put(eachID, true);
-                                        }
-                                    }
+                            if (null != endpoint) {
+                                JSONObject connectionData = eachEndpointData.getJSONObject("connectionStates");
+                                Iterator<?> keys = connectionData.keys();
+                                Set<String> liveConnectionIDs = null;
+
+                                if (resumedEndpoints.contains(dataEndpointID)) {
+                                    liveConnectionIDs = new HashSet<String>();
+                                    liveConnections.put(dataEndpointID, liveConnectionIDs);
+                                }
 
-                                    if (null != initialPresenceData) {
-                                        for (int ii = 0; ii < initialPresenceData.length(); ii++) {
-                                            try {
-                                                JSONObject eachEndpointData = (JSONObject) initialPresenceData.get(ii);
-                                                String dataEndpointID = eachEndpointData.getString("endpointId");
-                                                RespokeEndpoint endpoint = getEndpoint(dataEndpointID, true);
-
-                                                if (null != endpoint) {
-                                                    JSONObject connectionData = eachEndpointData.getJSONObject("connectionStates");
-                                                    Iterator<?> keys = connectionData.keys();
-
-                                                    while (keys.hasNext()) {
-                                                        String eachConnectionID = (String) keys.next();
-                                                        JSONObject presenceDict = connectionData.getJSONObject(eachConnectionID);
-                                                        Object newPresence = presenceDict.get("type");
-                                                        RespokeConnection connection = endpoint.getConnection(eachConnectionID, false);
-
-                                                        if ((null != connection) && (null != newPresence)) {
-                                                            connection.presence = newPresence;
-                                                        }
-                                                    }
-                                                }
-                                            } catch (JSONException e) {
-                                                // Silently skip this problem
-                                            }
-                                        }
+                                while (keys.hasNext()) {
+                                    String eachConnectionID = (String) keys.next();
+
+                                    if (null != liveConnectionIDs) {
+                                        liveConnectionIDs.add(eachConnectionID);
                                     }
 
-                                    for (String eachID : endpointIDsToRegister) {
-                                        RespokeEndpoint endpoint = getEndpoint(eachID, true);
-                                        endpoint.resolvePresence();
+                                    JSONObject presenceDict = connectionData.getJSONObject(eachConnectionID);
+                                    Object newPresence = presenceDict.get("type");
+                                    RespokeConnection connection = endpoint.getConnection(eachConnectionID, false);
+
+                                    if ((null != connection) && (null != newPresence)) {
+                                        connection.presence = newPresence;
                                     }
                                 }
+                            }
+                        } catch (JSONException e) {
+                            // Silently skip this problem
+                        }
+                    }
+                }
 
-                                @Override
-                                public void onError(final String errorMessage) {
-                                    Log.debug(TAG+"Error registering presence: " + errorMessage);
-                                }
-                            });
+                ArrayList<RespokeEndpoint> resolvedEndpoints = new ArrayList<RespokeEndpoint>(endpointIDsToRegister.size());
+
+                for (String eachID : endpointIDsToRegister) {
+                    RespokeEndpoint endpoint = lookupEndpoint(eachID);
+
+                    // The endpoint may have been evicted while the registration was in progress
+                    if (null != endpoint) {
+                        if (resumedEndpoints.remove(eachID)) {
+                            // Drop the connections that closed while the client was disconnected
+                            Set<String> liveConnectionIDs = liveConnections.get(eachID);
+                            endpoint.retainConnections((null != liveConnectionIDs) ? liveConnectionIDs : new HashSet<String>());
+                        }
+
+                        // An endpoint whose presence did not change, or is held back by the throttle window, is not part of the batch
+                        if (endpoint.recountPresence()) {
+                            resolvedEndpoints.add(endpoint);
                         }
                     }
-                });
+                }
+
+                deliverPresenceBatch(resolvedEndpoints);
+            }
+
+            @Override
+            public void onError(final String errorMessage) {
+                Log.debug(TAG+"Error registering presence: " + errorMessage);
+
+                // Forget the attempt, so that the endpoints are registered again the next time they are seen
+                for (String eachID : endpointIDsToRegister) {
+                    presenceRegistered.remove(eachID, false);
+                    pendingUnregistration.remove(eachID);
+                }
+            }
+        });
+    }
+
+
+    /**
+     *  Restore the groups and endpoints of the lost connection on the new one. The groups are rejoined with a single
+     *  request, and the presence of the known endpoints is registered again in batches.
+     *
+     *  @param channel  The signaling channel of the new connection
+     */
+    private void resumeSession(RespokeSignalingChannel channel) {
+        for (RespokeEndpoint eachEndpoint : knownEndpoints.values()) {
+            eachEndpoint.setSignalingChannel(channel);
+            resumedEndpoints.add(eachEndpoint.getEndpointID());
+            queuePresenceRegistration(eachEndpoint.getEndpointID());
+        }
+
+        final ArrayList<RespokeGroup> groupList = new ArrayList<RespokeGroup>();
+        for (RespokeGroup eachGroup : groups.values()) {
+            if (eachGroup.isMember()) {
+                groupList.add(eachGroup);
+            } else {
+                groups.remove(eachGroup.getGroupID(), eachGroup);
             }
         }
+
+        if (groupList.isEmpty()) {
+            return;
+        }
+
+        JSONArray groupIDs = new JSONArray();
+        for (RespokeGroup eachGroup : groupList) {
+            eachGroup.setSignalingChannel(channel);
+            groupIDs.put(eachGroup.getGroupID());
+        }
+
+        Log.debug(TAG + "Rejoining " + groupList.size() + " groups");
+
+        try {
+            JSONObject data = new JSONObject();
+            data.put("groups", groupIDs);
+
+            channel.sendRESTMessage("post", "/v1/groups", data, new RespokeSignalingChannel.RESTListener() {
+                @Override
+                public void onSuccess(Object response) {
+                    // Joins and leaves were missed while disconnected
+                    for (RespokeGroup eachGroup : groupList) {
+                        eachGroup.refreshMembers();
+                    }
+                }
+
+                @Override
+                public void onError(final String errorMessage) {
+                    for (RespokeGroup eachGroup : groupList) {
+                        eachGroup.didLeave();
+                        groups.remove(eachGroup.getGroupID(), eachGroup);
+                    }
+
+                    queueRunnable(new Runnable() {
+                        @Override
+                        public void run() {
+                            Listener listener = listenerReference.get();
+                            if (null != listener) {
+                                listener.onError(RespokeClient.this, "Unable to rejoin groups: " + errorMessage);
+                            }
+                        }
+                    });
+                }
+            });
+        } catch (JSONException e) {
+            Log.debug(TAG + "Error encoding group list to json");
+        }
     }
 
 
@@ -613,24 +1377,33 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
 
     public void onConnect(RespokeSignalingChannel sender, String endpointID, String connectionID) {
         connectionInProgress = false;
+        usingCachedToken = false;
+        cachedTokenListener = null;
         reconnectCount = 0;
         localEndpointID = endpointID;
         localConnectionID = connectionID;
 
+        finishReconnect();
+        scheduleEndpointSweep();
         Respoke.sharedInstance().clientConnected(this, endpointID);
 
-        // Try to set the presence to the initial or last set state
-        setPresence(presence, new Respoke.TaskCompletionListener() {
-            @Override
-            public void onSuccess() {
-                // do nothing
-            }
+        if (resuming) {
+            resuming = false;
+            resumeSession(sender);
+        }
 
-            @Override
-            public void onError(String errorMessage) {
-                // do nothing
-            }
-        });
+        // The initial or last set presence was sent along with the registration of the connection
+        RespokeConnectMetrics metrics = connectMetrics;
+        if (null != metrics) {
+            Log.debug(TAG + metrics.toString());
+        }
+
+        // Send the requests made while reconnecting, encoded with the new app token
+        RespokeOutbox heldRequests = outbox;
+        if (null != heldRequests) {
+            heldRequests.setOwner(applicationID, endpointID);
+            heldRequests.replay(sender);
+        }
 
         queueRunnable(new Runnable() {
             @Override
@@ -645,15 +1418,28 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
 
 
     public void onDisconnect(RespokeSignalingChannel sender) {
+        if (sender != signalingChannel) {
+            // A channel that has already been abandoned or replaced
+            return;
+        }
+
         // Can only reconnect in development mode, not brokered mode
         final boolean willReconnect = reconnect && (applicationID != null);
 
+        finishReconnect();
         calls.clear();
-        groups.clear();
-        knownEndpoints.clear();
-        presenceRegistrationQueue.clear();
+        // The presence registrations belong to the lost connection
+        presenceBatcher.clear();
         presenceRegistered.clear();
-        registrationTaskWaiting = false;
+        pendingUnregistration.clear();
+
+        if (willReconnect) {
+            // Kept, so that the groups and endpoints the app holds work again once the client has reconnected
+            resuming = true;
+        } else {
+            resuming = false;
+            cancelEndpointSweep();
+        }
 
         queueRunnable(new Runnable() {
             @Override
@@ -669,12 +1455,31 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
 
         if (willReconnect) {
             performReconnect();
+        } else {
+            abandonSession();
+        }
+    }
+
+
+    /**
+     *  Forget the groups and endpoints of the lost connection and fail the requests held for it, once the client is
+     *  not going to reconnect
+     */
+    private void abandonSession() {
+        groups.clear();
+        knownEndpoints.clear();
+        resumedEndpoints.clear();
+
+        RespokeOutbox heldRequests = outbox;
+        if (null != heldRequests) {
+            heldRequests.setAccepting(false);
+            heldRequests.clear("Can't complete request when not connected. Please reconnect!");
         }
     }
 
 
     public void onIncomingCall(JSONObject sdp, String sessionID, String connectionID, String endpointID, Date timestamp, RespokeSignalingChannel sender) {
-        RespokeEndpoint endpoint = getEndpoint(endpointID, false);
+        RespokeEndpoint endpoint = inboundEndpoint(endpointID);
 
         if (null != endpoint) {
             final RespokeCall call = newRespokeCall(signalingChannel, sdp, sessionID, connectionID, endpoint, false, timestamp);
@@ -695,7 +1500,7 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
 
 
     public void onIncomingDirectConnection(JSONObject sdp, String sessionID, String connectionID, String endpointID, Date timestamp, RespokeSignalingChannel sender) {
-        RespokeEndpoint endpoint = getEndpoint(endpointID, false);
+        RespokeEndpoint endpoint = inboundEndpoint(endpointID);
 
         if (null != endpoint) {
             final RespokeCall call = newRespokeCall(signalingChannel, sdp, sessionID, connectionID, endpoint, true, timestamp);
@@ -706,6 +1511,24 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
 
 
     public void onError(final String errorMessage, RespokeSignalingChannel sender) {
+        if (sender != signalingChannel) {
+            // A channel that has already been abandoned
+            return;
+        }
+
+        if (usingCachedToken && connectionInProgress) {
+            // The cached app token was most likely rejected, so forget it and connect again the full way
+            Log.debug(TAG + "Connecting with the cached app token failed, fetching a new one: " + errorMessage);
+            usingCachedToken = false;
+            Respoke.sharedInstance().getTokenCache().invalidate(applicationID, connectingEndpointID);
+
+            signalingChannel = null;
+            sender.disconnect();
+
+            connect(connectingEndpointID, applicationID, reconnect, presence, cachedTokenListener);
+            return;
+        }
+
         queueRunnable(new Runnable() {
             @Override
             public void run() {
@@ -718,6 +1541,10 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
 
         if ((null != signalingChannel) && (!signalingChannel.connected)) {
             connectionInProgress = false;
+            finishReconnect();
+
+            // Stop the socket from retrying on its own, the client decides when to try again
+            signalingChannel.disconnect();
 
             if (reconnect) {
                 performReconnect();
@@ -733,7 +1560,8 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
 
             if (null != group) {
                 // Get the existing instance for this connection, or create a new one if necessary
-                RespokeConnection connection = getConnection(connectionID, endpointID, false);
+                RespokeEndpoint endpoint = inboundEndpoint(endpointID);
+                RespokeConnection connection = ((null != endpoint) && (null != connectionID)) ? endpoint.getConnection(connectionID, false) : null;
 
                 if (null != connection) {
                     group.connectionDidJoin(connection);
@@ -750,7 +1578,7 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
 
             if (null != group) {
                 // Get the existing instance for this connection. If we are not already aware of it, ignore it
-                RespokeConnection connection = getConnection(connectionID, endpointID, true);
+                RespokeConnection connection = lookupConnection(connectionID, endpointID);
 
                 if (null != connection) {
                     group.connectionDidLeave(connection);
@@ -761,14 +1589,14 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
 
 
     public void onMessage(final String message, final Date timestamp, String endpointID, RespokeSignalingChannel sender) {
-        final RespokeEndpoint endpoint = getEndpoint(endpointID, false);
+        final RespokeEndpoint endpoint = inboundEndpoint(endpointID);
 
         if (null != endpoint) {
             // Notify the endpoint of the new message
             endpoint.didReceiveMessage(message, timestamp);
 
-            // Notify the client listener of the message
-            queueRunnable(new Runnable() {
+            // Notify the client listener of the message, in order with the notifications of the endpoint
+            queueRunnable(endpointID, new Runnable() {
                 @Override
                 public void run() {
                     if (null != listenerReference) {
@@ -787,13 +1615,13 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
         final RespokeGroup group = groups.get(groupID);
 
         if (null != group) {
-            final RespokeEndpoint endpoint = getEndpoint(endpointID, false);
+            final RespokeEndpoint endpoint = inboundEndpoint(endpointID);
 
             // Notify the group of the new message
             group.didReceiveMessage(message, endpoint, timestamp);
 
-            // Notify the client listener of the group message
-            queueRunnable(new Runnable() {
+            // Notify the client listener of the group message, in order with the notifications of the group
+            queueRunnable(groupID, new Runnable() {
                 @Override
                 public void run() {
                     if (null != listenerReference) {
@@ -809,13 +1637,100 @@ public class RespokeClient implements RespokeSignalingChannel.Listener {
 
 
     public void onPresence(Object presence, String connectionID, String endpointID, RespokeSignalingChannel sender) {
-        RespokeConnection connection = getConnection(connectionID, endpointID, false);
+        // Presence only arrives for registered endpoints, so an unknown one has been evicted and is ignored
+        RespokeEndpoint endpoint = lookupEndpoint(endpointID);
+
+        if ((null != endpoint) && (null != connectionID)) {
+            // A connection the endpoint opened since its presence was registered is added to it
+            RespokeConnection connection = endpoint.getConnection(connectionID, false);
+
+            if (endpoint.connectionPresenceChanged(connection, presence)) {
+                synchronized (presenceBatch) {
+                    if (!presenceBatch.contains(endpoint)) {
+                        presenceBatch.add(endpoint);
+                    }
+                }
+            }
+        }
+    }
+
+
+    public void onEventBatchComplete(RespokeSignalingChannel sender) {
+        ArrayList<RespokeEndpoint> endpoints;
+
+        synchronized (presenceBatch) {
+            endpoints = new ArrayList<RespokeEndpoint>(presenceBatch);
+            presenceBatch.clear();
+        }
+
+        deliverPresenceBatch(endpoints);
+
+        Iterator<RespokeGroup> iterator = groupsWithDelta.iterator();
+        while (iterator.hasNext()) {
+            RespokeGroup eachGroup = iterator.next();
+            iterator.remove();
+            eachGroup.frameComplete();
+        }
+    }
+
+
+    /**
+     *  Record that the membership of a group changed in the frame being processed, so that its changes are delivered
+     *  once the frame is complete
+     *
+     *  @param group  The group
+     */
+    void groupDeltaPending(RespokeGroup group) {
+        groupsWithDelta.add(group);
+    }
 
-        if (null != connection) {
-            connection.presence = presence;
 
-            RespokeEndpoint endpoint = connection.getEndpoint();
-            endpoint.resolvePresence();
+    /**
+     *  Notify a PresenceBatchListener of an endpoint whose presence was held back by the throttle window and has now
+     *  been delivered to the endpoint listener
+     *
+     *  @param endpoint  The endpoint
+     */
+    void throttledPresenceDelivered(RespokeEndpoint endpoint) {
+        ArrayList<RespokeEndpoint> endpoints = new ArrayList<RespokeEndpoint>(1);
+        endpoints.add(endpoint);
+        deliverPresenceBatch(endpoints, true);
+    }
+
+
+    /**
+     *  Notify a PresenceBatchListener of the endpoints whose presence was updated together
+     *
+     *  @param endpoints  The endpoints whose presence was updated
+     */
+    private void deliverPresenceBatch(ArrayList<RespokeEndpoint> endpoints) {
+        deliverPresenceBatch(endpoints, false);
+    }
+
+
+    /**
+     *  @param endpoints  The endpoints whose presence was updated
+     *  @param fromTimer  true if called on the shared scheduler, which must not run application code
+     */
+    private void deliverPresenceBatch(final ArrayList<RespokeEndpoint> endpoints, boolean fromTimer) {
+        if (endpoints.isEmpty() || (null == listenerReference) || !(listenerReference.get() instanceof PresenceBatchListener)) {
+            return;
+        }
+
+        Runnable delivery = new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = listenerReference.get();
+                if (listener instanceof PresenceBatchListener) {
+                    ((PresenceBatchListener) listener).onPresenceBatch(endpoints, RespokeClient.this);
+                }
+            }
+        };
+
+        if (fromTimer) {
+            queueTimedRunnable(this, delivery);
+        } else {
+            queueRunnable(delivery);
         }
     }
 
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2015, Digium, Inc. All rights reserved.
+ *
+ * This source code is licensed under The MIT License found in the LICENSE file
+ * in the root directory of this source tree.
+ *
+ * For all details and documentation: https://www.respoke.io
+ */
+package com.digium.respokesdk;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time taken by each stage of one connection attempt, from the call to
+ * connect until the client is connected and its initial presence has been
+ * set. The warm up of the socket runs alongside the token requests, so the
+ * stages do not necessarily add up to the total.
+ */
+public class RespokeConnectMetrics {
+
+    /**
+     * The stages of a connection attempt
+     */
+    public enum Stage {
+        WARM_UP, ///< DNS resolution and TLS handshake with the socket host, alongside the token requests
+        TOKEN, ///< The /v1/tokens request, in development mode
+        SESSION_TOKEN, ///< The /v1/session-tokens request that exchanges the token for an app token
+        SOCKET, ///< The socket.io handshake
+        REGISTRATION, ///< The /v1/connections request that registers the connection
+        PRESENCE ///< The /v1/presence request that sets the initial presence
+    }
+
+    private final long startTime;  ///< When the attempt started, in System.nanoTime() units
+    private final long[] stageStarts;
+    private final long[] stageEnds;
+    private boolean usedCachedToken;
+
+    RespokeConnectMetrics() {
+        startTime = System.nanoTime();
+        stageStarts = new long[Stage.values().length];
+        stageEnds = new long[Stage.values().length];
+    }
+
+    synchronized void stageStarted(Stage stage) {
+        stageStarts[stage.ordinal()] = System.nanoTime();
+        stageEnds[stage.ordinal()] = 0;
+    }
+
+    synchronized void stageCompleted(Stage stage) {
+        if ((0 != stageStarts[stage.ordinal()]) && (0 == stageEnds[stage.ordinal()])) {
+            stageEnds[stage.ordinal()] = System.nanoTime();
+        }
+    }
+
+    synchronized void setUsedCachedToken(boolean cached) {
+        usedCachedToken = cached;
+    }
+
+    /**
+     * @return true if the attempt skipped the token requests by using a cached app token
+     */
+    public synchronized boolean usedCachedToken() {
+        return usedCachedToken;
+    }
+
+    /**
+     * @param stage The stage to inspect
+     *
+     * @return How long the stage took, in milliseconds, or -1 if it was skipped or has not completed
+     */
+    public synchronized long getStageMillis(Stage stage) {
+        long end = stageEnds[stage.ordinal()];
+
+        if (0 == end) {
+            return -1;
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(end - stageStarts[stage.ordinal()]);
+    }
+
+    /**
+     * @return The time from the call to connect until the connection was registered, in milliseconds, or -1 if it has not been registered yet
+     */
+    public synchronized long getTimeToConnected() {
+        long end = stageEnds[Stage.REGISTRATION.ordinal()];
+
+        if (0 == end) {
+            return -1;
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(end - startTime);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("connected in ").append(getTimeToConnected()).append("ms");
+
+        if (usedCachedToken) {
+            builder.append(" with a cached token");
+        }
+
+        for (Stage eachStage : Stage.values()) {
+            builder.append(", ").append(eachStage.name().toLowerCase()).append(" ").append(getStageMillis(eachStage)).append("ms");
+        }
+
+        return builder.toString();
+    }
+}
@@ -23,6 +23,7 @@ public class RespokeConnection {
     private RespokeSignalingChannel signalingChannel;
     private WeakReference<RespokeEndpoint> endpointReference;
     public Object presence;
+    int countedRank = -1;  ///< The presence rank this connection is counted under by its endpoint, or -1 if it is not counted
 
     public RespokeConnection(RespokeSignalingChannel channel, String newConnectionID, RespokeEndpoint newEndpoint) {
         signalingChannel = channel;
@@ -34,4 +35,12 @@ public class RespokeConnection {
     public RespokeEndpoint getEndpoint() {
         return endpointReference.get();
     }
+
+
+    /**
+     *  @param channel  The signaling channel of the connection the client has reconnected with
+     */
+    void setSignalingChannel(RespokeSignalingChannel channel) {
+        signalingChannel = channel;
+    }
 }
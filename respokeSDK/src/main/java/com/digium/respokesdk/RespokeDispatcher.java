@@ -0,0 +1,318 @@
+/**
+ * Copyright 2015, Digium, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under The MIT License found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * For all details and documentation:  https://www.respoke.io
+ */
+
+package com.digium.respokesdk;
+
+import com.github.nkzawa.thread.EventThread;
+import com.phono.srtplight.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *  Decides on which thread the listeners of the app are notified. By default listeners are called inline on the
+ *  thread that received the event from the network, so a slow listener holds up every event after it. A dispatcher
+ *  with its own threads hands the notifications over to those threads instead, so that the network thread never
+ *  runs application code.
+ *
+ *  Every notification has a key, i.e. the ID of the endpoint or group it is about. Notifications with the same key are
+ *  always delivered in the order they were dispatched, on the same thread. Notifications with different keys may be
+ *  delivered in parallel when the dispatcher has more than one thread.
+ */
+public class RespokeDispatcher {
+
+    private static final String TAG = "RespokeDispatcher: ";
+
+    /**
+     *  The ways a dispatcher may deliver notifications
+     */
+    public enum Mode {
+        INLINE,   ///< On the thread that dispatched them, i.e. the network thread
+        ORDERED,  ///< On a single thread, in the order they were dispatched
+        POOLED    ///< On a pool of threads, in order per key
+    }
+
+    /**
+     *  What to do with a notification when the queue of its thread is full
+     */
+    public enum OverflowPolicy {
+        DROP_NEWEST,  ///< Discard the new notification
+        DROP_OLDEST,  ///< Discard the oldest notification that is waiting on the same thread
+        BLOCK         ///< Make the dispatching thread wait for room. This holds up the network thread, so use it only where no notification may be lost
+    }
+
+    public static final RespokeDispatcher INLINE = new RespokeDispatcher(Mode.INLINE, 0, 0, OverflowPolicy.DROP_NEWEST);
+
+    private static final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    private final Mode mode;
+    private final OverflowPolicy overflowPolicy;
+    private final ThreadPoolExecutor[] shards;  ///< One single threaded executor per shard, so that every key is always served by the same thread
+    private final Thread[] shardThreads;
+    private final Semaphore[] shardRoom;  ///< The free places in the queue of each shard
+    private final AtomicLong droppedCount;
+
+
+    /**
+     *  A notification waiting in the queue of a shard, holding a place in it until it starts running
+     */
+    private static class Notification implements Runnable {
+
+        final Runnable runnable;
+        final Semaphore room;  ///< The room the place was taken from, or null if the notification was queued beyond the limit
+
+        Notification(Runnable runnable, Semaphore room) {
+            this.runnable = runnable;
+            this.room = room;
+        }
+
+        @Override
+        public void run() {
+            if (null != room) {
+                room.release();
+            }
+
+            runnable.run();
+        }
+    }
+
+
+    /**
+     *  @param mode            How to deliver notifications
+     *  @param threadCount     The number of threads of a POOLED dispatcher. Ignored for the other modes
+     *  @param queueCapacity   The number of notifications that may wait for each thread
+     *  @param overflowPolicy  What to do with a notification when the queue of its thread is full
+     */
+    public RespokeDispatcher(Mode mode, int threadCount, int queueCapacity, OverflowPolicy overflowPolicy) {
+        this.mode = mode;
+        this.overflowPolicy = overflowPolicy;
+        droppedCount = new AtomicLong();
+
+        int shardCount;
+
+        switch (mode) {
+            case ORDERED:
+                shardCount = 1;
+                break;
+
+            case POOLED:
+                shardCount = Math.max(1, threadCount);
+                break;
+
+            default:
+                shardCount = 0;
+                break;
+        }
+
+        shards = new ThreadPoolExecutor[shardCount];
+        shardThreads = new Thread[shardCount];
+        shardRoom = new Semaphore[shardCount];
+
+        for (int ii = 0; ii < shardCount; ii++) {
+            final int shardIndex = ii;
+            shardRoom[ii] = new Semaphore(Math.max(1, queueCapacity));
+
+            // The queue itself is unbounded, the room of the shard enforces the capacity
+            shards[ii] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "RespokeDispatch-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    shardThreads[shardIndex] = thread;
+                    return thread;
+                }
+            }, newOverflowHandler());
+            shards[ii].prestartAllCoreThreads();
+        }
+    }
+
+
+    public Mode getMode() {
+        return mode;
+    }
+
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+
+    /**
+     *  Deliver a notification according to the mode of this dispatcher
+     *
+     *  @param key       Notifications with equal keys are delivered in order. May be null
+     *  @param runnable  The notification
+     */
+    public void dispatch(Object key, Runnable runnable) {
+        if (0 == shards.length) {
+            runnable.run();
+            return;
+        }
+
+        int index = shardIndex(key);
+        ThreadPoolExecutor shard = shards[index];
+
+        if (Thread.currentThread() == shardThreads[index]) {
+            // Already on the right thread, i.e. a listener caused another notification
+            if (shard.getQueue().isEmpty()) {
+                // Nothing is waiting that it could overtake
+                runnable.run();
+            } else {
+                // Queued behind the waiting notifications to keep the order. Waiting for room here would deadlock a
+                // blocking dispatcher, since only this thread makes room, so it may go beyond the capacity
+                shard.execute(new Notification(runnable, null));
+            }
+
+            return;
+        }
+
+        Semaphore room = shardRoom[index];
+
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    room.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    droppedCount.incrementAndGet();
+                    return;
+                }
+                break;
+
+            case DROP_OLDEST:
+                while (!room.tryAcquire()) {
+                    Runnable oldest = shard.getQueue().poll();
+
+                    if (null == oldest) {
+                        // Other dispatching threads took the room that was made, so give up rather than spin
+                        droppedCount.incrementAndGet();
+                        Log.debug(TAG + "Queue full, notification discarded");
+                        return;
+                    }
+
+                    droppedCount.incrementAndGet();
+
+                    if (oldest instanceof Notification) {
+                        Semaphore oldestRoom = ((Notification) oldest).room;
+
+                        if (null != oldestRoom) {
+                            oldestRoom.release();
+                        }
+                    }
+                }
+                break;
+
+            default:
+                if (!room.tryAcquire()) {
+                    droppedCount.incrementAndGet();
+                    Log.debug(TAG + "Queue full, notification discarded");
+                    return;
+                }
+                break;
+        }
+
+        shard.execute(new Notification(runnable, room));
+    }
+
+
+    /**
+     *  Deliver a notification raised on a thread that must not run application code, i.e. the scheduler shared by all
+     *  clients. An inline dispatcher hands it to the socket event thread, which delivers the other inline notifications,
+     *  instead of running it on the calling thread.
+     *
+     *  @param key       Notifications with equal keys are delivered in order. May be null
+     *  @param runnable  The notification
+     */
+    void dispatchDeferred(Object key, Runnable runnable) {
+        if (0 == shards.length) {
+            EventThread.exec(runnable);
+        } else {
+            dispatch(key, runnable);
+        }
+    }
+
+
+    /**
+     *  @return The number of threads of this dispatcher, which is 0 for an inline dispatcher
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+
+    /**
+     *  @param shard  The index of the thread to inspect
+     *
+     *  @return The number of notifications waiting for this thread
+     */
+    public int getShardQueueDepth(int shard) {
+        return shards[shard].getQueue().size();
+    }
+
+
+    /**
+     *  @return The number of notifications waiting for any thread of this dispatcher
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+
+        for (ThreadPoolExecutor eachShard : shards) {
+            depth += eachShard.getQueue().size();
+        }
+
+        return depth;
+    }
+
+
+    /**
+     *  @return The number of notifications that were discarded because a queue was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+
+    /**
+     *  Stop the threads of this dispatcher once they have delivered the notifications that are already waiting.
+     *  Notifications dispatched later are discarded.
+     */
+    public void shutdown() {
+        for (ThreadPoolExecutor eachShard : shards) {
+            eachShard.shutdown();
+        }
+    }
+
+
+    private int shardIndex(Object key) {
+        if ((null == key) || (1 == shards.length)) {
+            return 0;
+        }
+
+        return (key.hashCode() & Integer.MAX_VALUE) % shards.length;
+    }
+
+
+    private RejectedExecutionHandler newOverflowHandler() {
+        return new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                // The queue is unbounded, so only notifications dispatched after shutdown are rejected
+                droppedCount.incrementAndGet();
+            }
+        };
+    }
+}
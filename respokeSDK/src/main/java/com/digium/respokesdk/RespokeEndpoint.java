@@ -17,8 +17,14 @@ import org.json.JSONObject;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  *  Represents remote Endpoints. Endpoints are users of this application that are not the one logged into this
@@ -32,10 +38,27 @@ public class RespokeEndpoint {
     private WeakReference<Listener> listenerReference;
     private String endpointID;
     public ArrayList<RespokeConnection> connections;
+    private ConcurrentHashMap<String, RespokeConnection> connectionIndex;  ///< The connections of this endpoint, indexed by connection ID
     private RespokeSignalingChannel signalingChannel;
     public Object presence;
     private WeakReference<RespokeDirectConnection> directConnectionReference;
     private WeakReference<RespokeClient> clientReference;
+    private volatile long lastActivity;  ///< When this endpoint was last looked up or heard from, used to evict idle endpoints
+    private final int[] rankCounts = new int[PRESENCE_RANKS.length];  ///< The number of connections with each presence rank, guarded by the connections lock
+    private final Object throttleLock = new Object();  ///< Guards the presence throttling state below
+    private Object notifiedPresence;  ///< The presence the listener was last notified of
+    private long lastNotifyTime;  ///< When the listener was last notified of a presence change
+    private ScheduledFuture<?> throttleFuture;  ///< The delayed notification of the latest presence, if one is scheduled
+    private long notifySequence;  ///< Counts the presence notifications, so that one overtaken by a later one is skipped
+
+    private static final String[] PRESENCE_RANKS = {"chat", "available", "away", "dnd", "xa", "unavailable"};  ///< The known presence values, most available first
+    private static final HashMap<String, Integer> PRESENCE_RANK_INDEX = new HashMap<String, Integer>();
+
+    static {
+        for (int ii = 0; ii < PRESENCE_RANKS.length; ii++) {
+            PRESENCE_RANK_INDEX.put(PRESENCE_RANKS[ii], ii);
+        }
+    }
 
 
     /**
@@ -68,7 +91,9 @@ public class RespokeEndpoint {
         endpointID = newEndpointID;
         signalingChannel = channel;
         connections = new ArrayList<RespokeConnection>();
+        connectionIndex = new ConcurrentHashMap<String, RespokeConnection>();
         clientReference = new WeakReference<RespokeClient>(client);
+        lastActivity = System.currentTimeMillis();
     }
 
 
@@ -76,18 +101,25 @@ public class RespokeEndpoint {
         listenerReference = new WeakReference<Listener>(listener);
     }
     void queueRunnable(Runnable r){
-        r.run();
+        RespokeClient client = clientReference.get();
+
+        if (null != client) {
+            client.queueRunnable(endpointID, r);
+        } else {
+            r.run();
+        }
     }
 
     public void sendMessage(String message, boolean push, final Respoke.TaskCompletionListener completionListener) {
-        if ((null != signalingChannel) && (signalingChannel.connected)) {
+        // Held in the outbox of the client while it is reconnecting
+        if ((null != signalingChannel) && (signalingChannel.isAcceptingRequests())) {
             try {
                 JSONObject data = new JSONObject();
                 data.put("to", endpointID);
                 data.put("message", message);
                 data.put("push", push);
 
-                signalingChannel.sendRESTMessage("post", "/v1/messages", data, new RespokeSignalingChannel.RESTListener() {
+                signalingChannel.sendRESTMessage("post", "/v1/messages", data, RespokeWorkerThread.Priority.BULK, new RespokeSignalingChannel.RESTListener() {
                     @Override
                     public void onSuccess(Object response) {
                         Respoke.postTaskSuccess(completionListener);
@@ -125,25 +157,88 @@ public class RespokeEndpoint {
     }
 
 
-    public RespokeConnection getConnection(String connectionID, boolean skipCreate) {
-        RespokeConnection connection = null;
+    /**
+     *  Use the signaling channel of the connection the client has reconnected with, for this endpoint and its
+     *  connections
+     *
+     *  @param channel  The new signaling channel
+     */
+    void setSignalingChannel(RespokeSignalingChannel channel) {
+        signalingChannel = channel;
 
-        for (RespokeConnection eachConnection : connections) {
-            if (eachConnection.connectionID.equals(connectionID)) {
-                connection = eachConnection;
-                break;
+        synchronized (connections) {
+            for (RespokeConnection eachConnection : connections) {
+                eachConnection.setSignalingChannel(channel);
             }
         }
+    }
+
+
+    void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+
+    /**
+     *  @return true if the app is holding on to this endpoint, either through a listener or a direct connection, so
+     *          that the client must not evict it from its cache
+     */
+    boolean isPinned() {
+        if ((null != listenerReference) && (null != listenerReference.get())) {
+            return true;
+        }
+
+        return null != directConnection();
+    }
+
+
+    public RespokeConnection getConnection(String connectionID, boolean skipCreate) {
+        RespokeConnection connection = connectionIndex.get(connectionID);
 
         if ((null == connection) && !skipCreate) {
-            connection = new RespokeConnection(signalingChannel, connectionID, this);
-            connections.add(connection);
+            RespokeConnection newConnection = new RespokeConnection(signalingChannel, connectionID, this);
+            connection = connectionIndex.putIfAbsent(connectionID, newConnection);
+
+            if (null == connection) {
+                connection = newConnection;
+
+                synchronized (connections) {
+                    connections.add(connection);
+                }
+            }
         }
 
         return connection;
     }
 
 
+    /**
+     *  Drop the connections that are missing from a list the server has just sent, i.e. the connections that closed
+     *  while the client was disconnected. Resolve the presence again afterwards.
+     *
+     *  @param liveConnectionIDs  The IDs of the connections the endpoint still has
+     */
+    void retainConnections(Set<String> liveConnectionIDs) {
+        synchronized (connections) {
+            Iterator<RespokeConnection> iterator = connections.iterator();
+
+            while (iterator.hasNext()) {
+                RespokeConnection eachConnection = iterator.next();
+
+                if (!liveConnectionIDs.contains(eachConnection.connectionID)) {
+                    iterator.remove();
+                    connectionIndex.remove(eachConnection.connectionID, eachConnection);
+                }
+            }
+        }
+    }
+
+
     public ArrayList<RespokeConnection> getConnections() {
         return connections;
     }
@@ -164,17 +259,79 @@ public class RespokeEndpoint {
     }
 
 
+    /**
+     *  Update the presence of one of the connections of this endpoint and notify the listener if the presence of the
+     *  endpoint changes as a result. Without a custom ResolvePresenceListener this takes constant time, however many
+     *  connections the endpoint has.
+     *
+     *  @param connection   The connection whose presence changed
+     *  @param newPresence  The new presence of the connection
+     *
+     *  @return true if the listener is notified of a new presence straight away, false if the presence did not change
+     *          or the notification is held back by the throttle window
+     */
+    boolean connectionPresenceChanged(RespokeConnection connection, Object newPresence) {
+        synchronized (connections) {
+            setCountedPresence(connection, newPresence);
+        }
+
+        return resolve();
+    }
+
+
+    /**
+     *  Recount the presence of every connection and resolve the presence of the endpoint from it, notifying the
+     *  listener if it changed. Use this after assigning the presence field of connections directly.
+     */
     public void resolvePresence() {
-        ArrayList<Object> list = new ArrayList<Object>();
+        recountPresence();
+    }
 
-        for (RespokeConnection eachConnection : connections) {
-            Object connectionPresence = eachConnection.presence;
 
-            if (null != connectionPresence) {
-                list.add(connectionPresence);
+    /**
+     *  Recount the presence of every connection and resolve the presence of the endpoint from it
+     *
+     *  @return true if the listener is notified of the new presence straight away
+     */
+    boolean recountPresence() {
+        synchronized (connections) {
+            Arrays.fill(rankCounts, 0);
+
+            for (RespokeConnection eachConnection : connections) {
+                eachConnection.countedRank = -1;
+                setCountedPresence(eachConnection, eachConnection.presence);
             }
         }
 
+        return resolve();
+    }
+
+
+    /**
+     *  Set the presence of a connection and move it to the counter of its new rank. Must be called with the
+     *  connections locked.
+     */
+    private void setCountedPresence(RespokeConnection connection, Object newPresence) {
+        connection.presence = newPresence;
+
+        if (connection.countedRank >= 0) {
+            rankCounts[connection.countedRank]--;
+        }
+
+        connection.countedRank = presenceRank(newPresence);
+
+        if (connection.countedRank >= 0) {
+            rankCounts[connection.countedRank]++;
+        }
+    }
+
+
+    /**
+     *  Resolve the presence of the endpoint from its connections and notify the listener if it changed
+     *
+     *  @return true if the listener is notified of the new presence straight away
+     */
+    private boolean resolve() {
         RespokeClient client = null;
         RespokeClient.ResolvePresenceListener resolveListener = null;
         if (null != clientReference) {
@@ -185,52 +342,181 @@ public class RespokeEndpoint {
             }
         }
 
+        final Object newPresence;
+
         if (null != resolveListener) {
-            presence = resolveListener.resolvePresence(list);
-        } else {
-            ArrayList<String> options = new ArrayList<String>();
-            options.add("chat");
-            options.add("available");
-            options.add("away");
-            options.add("dnd");
-            options.add("xa");
-            options.add("unavailable");
-
-            String newPresence = null;
-            for (String eachOption : options) {
-                for (Object eachObject : list) {
-                    if (eachObject instanceof String) {
-                        String eachObjectString = (String) eachObject;
-
-                        if (eachObjectString.toLowerCase().equals(eachOption)) {
-                            newPresence = eachOption;
-                        }
+            ArrayList<Object> list = new ArrayList<Object>();
+
+            synchronized (connections) {
+                for (RespokeConnection eachConnection : connections) {
+                    Object connectionPresence = eachConnection.presence;
+
+                    if (null != connectionPresence) {
+                        list.add(connectionPresence);
                     }
                 }
+            }
+
+            newPresence = resolveListener.resolvePresence(list);
+        } else {
+            String highestPresence = "unavailable";
 
-                if (null != newPresence) {
-                    break;
+            synchronized (connections) {
+                for (int ii = 0; ii < rankCounts.length; ii++) {
+                    if (rankCounts[ii] > 0) {
+                        highestPresence = PRESENCE_RANKS[ii];
+                        break;
+                    }
                 }
             }
 
-            if (null == newPresence) {
-                newPresence = "unavailable";
+            newPresence = highestPresence;
+        }
+
+        synchronized (connections) {
+            if ((null == newPresence) ? (null == presence) : newPresence.equals(presence)) {
+                return false;
             }
 
             presence = newPresence;
         }
 
-        queueRunnable(new Runnable() {
+        return throttlePresence(newPresence, (null != client) ? client.getPresenceThrottleWindow() : 0);
+    }
+
+
+    /**
+     *  Notify the listener of a new presence, unless it was notified less than the throttle window ago. In that case
+     *  only the latest presence is delivered once the window has passed, so that an endpoint flapping between states
+     *  does not flood the app. Changes to or from unavailable are always delivered straight away.
+     *
+     *  @param newPresence     The new presence of the endpoint
+     *  @param throttleWindow  The throttle window in milliseconds, or 0 to notify every change
+     *
+     *  @return true if the listener is notified straight away
+     */
+    private boolean throttlePresence(Object newPresence, long throttleWindow) {
+        long sequence;
+
+        synchronized (throttleLock) {
+            long now = System.currentTimeMillis();
+            boolean availabilityChanged = "unavailable".equals(newPresence) || "unavailable".equals(notifiedPresence) || (null == notifiedPresence);
+
+            if ((0 == throttleWindow) || availabilityChanged || ((null == throttleFuture) && (now - lastNotifyTime >= throttleWindow))) {
+                if (null != throttleFuture) {
+                    throttleFuture.cancel(false);
+                    throttleFuture = null;
+                }
+
+                sequence = presenceNotified(newPresence, now);
+            } else {
+                if (null == throttleFuture) {
+                    throttleFuture = Respoke.sharedInstance().getScheduler().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            throttleWindowElapsed();
+                        }
+                    }, lastNotifyTime + throttleWindow - now, TimeUnit.MILLISECONDS);
+                }
+
+                return false;
+            }
+        }
+
+        // The listener is called outside the lock, so that it may look at this endpoint without deadlocking
+        queueRunnable(newPresenceNotification(newPresence, sequence));
+
+        return true;
+    }
+
+
+    /**
+     *  Deliver the latest presence once the throttle window has passed, unless the endpoint has flipped back to the
+     *  presence the listener was last notified of
+     */
+    private void throttleWindowElapsed() {
+        Object latestPresence;
+        long sequence;
+
+        synchronized (throttleLock) {
+            throttleFuture = null;
+            latestPresence = presence;
+
+            if ((null == latestPresence) || latestPresence.equals(notifiedPresence)) {
+                return;
+            }
+
+            sequence = presenceNotified(latestPresence, System.currentTimeMillis());
+        }
+
+        RespokeClient client = clientReference.get();
+
+        if (null != client) {
+            // This runs on the shared scheduler, which must not run application code
+            client.queueTimedRunnable(endpointID, newPresenceNotification(latestPresence, sequence));
+            client.throttledPresenceDelivered(this);
+        }
+    }
+
+
+    /**
+     *  Record that the listener is being notified of a presence. Must be called with the throttle lock held.
+     *
+     *  @return The sequence number of the notification
+     */
+    private long presenceNotified(Object newPresence, long now) {
+        notifiedPresence = newPresence;
+        lastNotifyTime = now;
+
+        return ++notifySequence;
+    }
+
+
+    /**
+     *  @param newPresence  The presence to notify the listener of
+     *  @param sequence     The sequence number of the notification
+     *
+     *  @return A notification that is skipped if a later one was made before it runs
+     */
+    private Runnable newPresenceNotification(final Object newPresence, final long sequence) {
+        return new Runnable() {
             @Override
             public void run() {
+                synchronized (throttleLock) {
+                    if (sequence != notifySequence) {
+                        return;
+                    }
+                }
+
                 if (null != listenerReference) {
                     Listener listener = listenerReference.get();
                     if (null != listener) {
-                        listener.onPresence(presence, RespokeEndpoint.this);
+                        listener.onPresence(newPresence, RespokeEndpoint.this);
                     }
                 }
             }
-        });
+        };
+    }
+
+
+    /**
+     *  @param presenceValue  A presence value of a connection
+     *
+     *  @return The index of the value in the rank table, or -1 if it is not a known presence
+     */
+    private static int presenceRank(Object presenceValue) {
+        if (!(presenceValue instanceof String)) {
+            return -1;
+        }
+
+        Integer rank = PRESENCE_RANK_INDEX.get(presenceValue);
+
+        if (null == rank) {
+            // Presence values are normally lower case already, so only convert the odd one
+            rank = PRESENCE_RANK_INDEX.get(((String) presenceValue).toLowerCase());
+        }
+
+        return (null != rank) ? rank : -1;
     }
 
 
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2015, Digium, Inc. All rights reserved.
+ *
+ * This source code is licensed under The MIT License found in the LICENSE file
+ * in the root directory of this source tree.
+ *
+ * For all details and documentation: https://www.respoke.io
+ */
+package com.digium.respokesdk;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Encodes the envelope of the REST requests that are sent over the socket,
+ * i.e. the app token header, the url and the data. The header is encoded once
+ * per app token, and each envelope is written once into a reused buffer while
+ * its UTF-8 size is counted, so that checking the size against the body limit
+ * does not need another serialization. The encoded envelope is emitted on the
+ * socket as it is.
+ */
+class RespokeEnvelopeEncoder {
+
+    /**
+     * An encoded request envelope. It is emitted on the socket in place of the
+     * JSON array it stands for, and written out verbatim.
+     */
+    static final class Envelope implements JSONString {
+
+        final String json;
+        final int utf8Length; ///< The size of the envelope in UTF-8, in bytes
+
+        private Envelope(String json, int utf8Length) {
+            this.json = json;
+            this.utf8Length = utf8Length;
+        }
+
+        @Override
+        public String toJSONString() {
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return json;
+        }
+    }
+
+    /**
+     * Appends to a string builder and counts the UTF-8 size of what is written
+     */
+    private static final class CountingWriter extends Writer {
+
+        final StringBuilder buffer = new StringBuilder(256);
+        int utf8Length;
+
+        @Override
+        public void write(int c) {
+            buffer.append((char) c);
+            utf8Length += utf8Length((char) c);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            buffer.append(chars, offset, length);
+
+            for (int ii = offset; ii < offset + length; ii++) {
+                utf8Length += utf8Length(chars[ii]);
+            }
+        }
+
+        @Override
+        public void write(String string, int offset, int length) {
+            buffer.append(string, offset, offset + length);
+
+            for (int ii = offset; ii < offset + length; ii++) {
+                utf8Length += utf8Length(string.charAt(ii));
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        void reset() {
+            buffer.setLength(0);
+            utf8Length = 0;
+        }
+
+        private static int utf8Length(char c) {
+            if (c < 0x80) {
+                return 1;
+            } else if (c < 0x800) {
+                return 2;
+            } else if (Character.isHighSurrogate(c)) {
+                // The pair is encoded as 4 bytes, all counted here
+                return 4;
+            } else if (Character.isLowSurrogate(c)) {
+                return 0;
+            }
+
+            return 3;
+        }
+    }
+
+    private final CountingWriter writer = new CountingWriter();
+    private String headerToken; ///< The app token the cached header was encoded for
+    private String header; ///< The encoded start of the envelope up to the url
+
+    /**
+     * Encode a request envelope
+     *
+     * @param appToken The app token to send in the headers
+     * @param url The url of the request
+     * @param data The data of the request, or null if there is none
+     *
+     * @return The encoded envelope
+     *
+     * @throws JSONException if the data can not be encoded
+     */
+    synchronized Envelope encode(String appToken, String url, JSONObject data) throws JSONException {
+        writer.reset();
+
+        try {
+            writer.write(header(appToken));
+            JSONObject.quote(url, writer);
+
+            if (null != data) {
+                writer.write(",\"data\":");
+                data.write(writer);
+            }
+
+            writer.write("}]");
+        } catch (IOException e) {
+            // The writer only appends to memory
+            throw new JSONException(e);
+        }
+
+        return new Envelope(writer.buffer.toString(), writer.utf8Length);
+    }
+
+    private String header(String appToken) {
+        if ((null == header) || !String.valueOf(appToken).equals(headerToken)) {
+            headerToken = String.valueOf(appToken);
+            header = "[{\"headers\":{\"App-Token\":" + JSONObject.quote(headerToken) + "},\"url\":";
+        }
+
+        return header;
+    }
+}
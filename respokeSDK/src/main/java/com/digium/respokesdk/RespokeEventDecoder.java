@@ -0,0 +1,179 @@
+/**
+ * Copyright 2015, Digium, Inc. All rights reserved.
+ *
+ * This source code is licensed under The MIT License found in the LICENSE file
+ * in the root directory of this source tree.
+ *
+ * For all details and documentation: https://www.respoke.io
+ */
+package com.digium.respokesdk;
+
+import org.json.JSONObject;
+
+/**
+ * Pulls the fields the signaling channel needs out of the join, leave,
+ * message, pubsub and presence frames received on the socket, into an event
+ * record that is reused from frame to frame. Missing or mistyped fields are
+ * reported by the return value rather than by throwing, so that a bad frame
+ * costs no more than a good one.
+ *
+ * The socket.io client hands the frames over already parsed, so the decoder
+ * works on that tree and never builds one of its own.
+ */
+public class RespokeEventDecoder {
+
+    /**
+     * The fields of a decoded frame. Only the fields of the frame type that
+     * was decoded last are valid, and they are overwritten by the next frame.
+     */
+    public static final class Event {
+
+        public String endpointID; ///< The endpoint the frame is from or about
+        public String connectionID; ///< The connection the frame is from or about
+        public String groupID; ///< The group of a join, leave or pubsub frame
+        public String body; ///< The text of a message or pubsub frame
+        public Object presence; ///< The presence of a presence frame
+        public long timestamp; ///< When the message was sent, in milliseconds since the epoch, or 0 if not known
+
+        void reset() {
+            endpointID = null;
+            connectionID = null;
+            groupID = null;
+            body = null;
+            presence = null;
+            timestamp = 0;
+        }
+    }
+
+    /**
+     * Decode a join or leave frame
+     *
+     * @param frame The frame as received from the socket
+     * @param event Receives endpointID, connectionID and groupID
+     *
+     * @return false if the frame is missing any of those fields
+     */
+    public boolean decodeMembership(Object frame, Event event) {
+        event.reset();
+
+        if (!(frame instanceof JSONObject)) {
+            return false;
+        }
+
+        JSONObject eventObject = (JSONObject) frame;
+        event.endpointID = stringField(eventObject, "endpointId");
+        event.connectionID = stringField(eventObject, "connectionId");
+        event.groupID = stringField(eventObject.optJSONObject("header"), "channel");
+
+        return (null != event.endpointID) && (null != event.connectionID) && (null != event.groupID);
+    }
+
+    /**
+     * Decode a message frame
+     *
+     * @param frame The frame as received from the socket
+     * @param event Receives endpointID, body and timestamp
+     *
+     * @return false if the frame is missing the sender or the body
+     */
+    public boolean decodeMessage(Object frame, Event event) {
+        event.reset();
+
+        if (!(frame instanceof JSONObject)) {
+            return false;
+        }
+
+        JSONObject eventObject = (JSONObject) frame;
+        JSONObject header = eventObject.optJSONObject("header");
+        event.body = stringField(eventObject, "body");
+        event.endpointID = stringField(header, "from");
+        event.timestamp = timestampField(header);
+
+        return (null != event.body) && (null != event.endpointID);
+    }
+
+    /**
+     * Decode a pubsub (group message) frame
+     *
+     * @param frame The frame as received from the socket
+     * @param event Receives endpointID, groupID, body and timestamp
+     *
+     * @return false if the frame is missing the sender, the group or the message
+     */
+    public boolean decodePubsub(Object frame, Event event) {
+        event.reset();
+
+        if (!(frame instanceof JSONObject)) {
+            return false;
+        }
+
+        JSONObject eventObject = (JSONObject) frame;
+        JSONObject header = eventObject.optJSONObject("header");
+        event.body = stringField(eventObject, "message");
+        event.endpointID = stringField(header, "from");
+        event.groupID = stringField(header, "channel");
+        event.timestamp = timestampField(header);
+
+        return (null != event.body) && (null != event.endpointID) && (null != event.groupID);
+    }
+
+    /**
+     * Decode a presence frame
+     *
+     * @param frame The frame as received from the socket
+     * @param event Receives endpointID, connectionID and presence
+     *
+     * @return false if the frame is missing any of those fields
+     */
+    public boolean decodePresence(Object frame, Event event) {
+        event.reset();
+
+        if (!(frame instanceof JSONObject)) {
+            return false;
+        }
+
+        JSONObject eventObject = (JSONObject) frame;
+        JSONObject header = eventObject.optJSONObject("header");
+        event.presence = stringField(eventObject, "type");
+        event.endpointID = stringField(header, "from");
+        event.connectionID = stringField(header, "fromConnection");
+
+        return (null != event.presence) && (null != event.endpointID) && (null != event.connectionID);
+    }
+
+    /**
+     * @return The value of the key if it is a string, otherwise null
+     */
+    private static String stringField(JSONObject object, String key) {
+        if (null != object) {
+            Object value = object.opt(key);
+
+            if (value instanceof String) {
+                return (String) value;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The timestamp of the header, or 0 if it has none
+     */
+    private static long timestampField(JSONObject header) {
+        if (null != header) {
+            Object value = header.opt("timestamp");
+
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            } else if (value instanceof String) {
+                try {
+                    return Long.parseLong((String) value);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+
+        return 0;
+    }
+}
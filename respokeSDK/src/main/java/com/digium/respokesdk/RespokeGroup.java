@@ -10,6 +10,8 @@
 
 package com.digium.respokesdk;
 
+import com.phono.srtplight.Log;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -17,6 +19,11 @@ import org.json.JSONObject;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -30,6 +37,9 @@ public class RespokeGroup {
     private RespokeSignalingChannel signalingChannel;  ///< The signaling channel to use
     private ArrayList<RespokeConnection> members;  ///< An array of the members of this group
     private boolean joined;  ///< Indicates if the client is a member of this group
+    private long compactionWindow;  ///< How long membership changes are collected before they are delivered, in milliseconds, or 0 to deliver each one straight away
+    private final LinkedHashMap<RespokeConnection, Boolean> pendingDelta;  ///< The membership changes that have not been delivered yet, true for a join and false for a leave
+    private ScheduledFuture<?> deltaFlushFuture;  ///< The scheduled delivery of the pending membership changes
 
 
     /**
@@ -69,6 +79,25 @@ public class RespokeGroup {
     }
 
 
+    /**
+     *  A listener that receives the membership changes of the group as one batch, instead of one onJoin or onLeave
+     *  callback per connection
+     */
+    public interface MembershipListener extends Listener {
+
+
+        /**
+         *  Receive the net change of the group membership since the last notification. A connection that joined and
+         *  left again in the meantime is in neither list.
+         *
+         *  @param joined  The connections that joined the group
+         *  @param left    The connections that left the group
+         *  @param sender  The RespokeGroup whose membership changed
+         */
+        void onMembershipDelta(ArrayList<RespokeConnection> joined, ArrayList<RespokeConnection> left, RespokeGroup sender);
+    }
+
+
     /**
      * A listener interface to receive a notification that the task to get the list of group members has completed
      */
@@ -86,10 +115,28 @@ public class RespokeGroup {
         clientReference = new WeakReference<RespokeClient>(newClient);
         members = new ArrayList<RespokeConnection>();
         joined = true;
+        pendingDelta = new LinkedHashMap<RespokeConnection, Boolean>();
     }
 
     void queueRunnable(Runnable r){
-        r.run();
+        RespokeClient client = clientReference.get();
+
+        if (null != client) {
+            client.queueRunnable(groupID, r);
+        } else {
+            r.run();
+        }
+    }
+
+
+    private void queueTimedRunnable(Runnable r) {
+        RespokeClient client = clientReference.get();
+
+        if (null != client) {
+            client.queueTimedRunnable(groupID, r);
+        } else {
+            r.run();
+        }
     }
     
     public void setListener(Listener listener) {
@@ -97,7 +144,64 @@ public class RespokeGroup {
     }
 
 
+    /**
+     *  Collect the membership changes of this group for a while before delivering them, so that a connection that
+     *  joins and leaves again within the window is not reported at all. This keeps apps from thrashing while a large
+     *  group churns, i.e. when it restarts. A MembershipListener receives the net change as one batch, other listeners
+     *  receive one onJoin or onLeave per remaining change. The member list returned by the server is not affected.
+     *
+     *  Without a window, a MembershipListener still receives the changes of each frame from the server as one batch.
+     *
+     *  @param windowMillis  The window in milliseconds, or 0 to deliver each change straight away
+     */
+    public void setCompactionWindow(long windowMillis) {
+        synchronized (pendingDelta) {
+            compactionWindow = Math.max(0, windowMillis);
+        }
+
+        if (0 == windowMillis) {
+            flushMembershipDelta();
+        }
+    }
+
+
+    public long getCompactionWindow() {
+        synchronized (pendingDelta) {
+            return compactionWindow;
+        }
+    }
+
+
     public void getMembers(final GetGroupMembersCompletionListener completionListener) {
+        fetchMembers(completionListener, false);
+    }
+
+
+    /**
+     *  Fetch the members again once the group has been rejoined after a reconnect, since the joins and leaves made
+     *  while the client was disconnected were missed, and notify the listener of the difference
+     */
+    void refreshMembers() {
+        fetchMembers(new GetGroupMembersCompletionListener() {
+            @Override
+            public void onSuccess(ArrayList<RespokeConnection> memberArray) {
+                // The listener has been notified of the difference already
+            }
+
+            @Override
+            public void onError(String errorMessage) {
+                Log.debug("Unable to refresh the members of group " + groupID + ": " + errorMessage);
+            }
+        }, true);
+    }
+
+
+    /**
+     *  @param completionListener  The listener to notify of the members
+     *  @param reportChanges       true to notify the group listener of the connections that joined or left since the
+     *                             members were last known
+     */
+    private void fetchMembers(final GetGroupMembersCompletionListener completionListener, final boolean reportChanges) {
         if (isJoined()) {
             if ((null != groupID) && (groupID.length() > 0)) {
                 String urlEndpoint = "/v1/channels/" + groupID + "/subscribers/";
@@ -144,9 +248,41 @@ public class RespokeGroup {
                                 }
                             }
 
+                            final ArrayList<RespokeConnection> joinedList = new ArrayList<RespokeConnection>();
+                            final ArrayList<RespokeConnection> leftList = new ArrayList<RespokeConnection>();
+
                             // If certain connections present in the members array prior to this method are somehow no longer in the list received from the server, it's assumed a pending onLeave message will handle flushing it out of the client cache after this method completes
-                            members.clear();
-                            members.addAll(nameList);
+                            synchronized (members) {
+                                if (reportChanges) {
+                                    for (RespokeConnection eachConnection : members) {
+                                        if (!nameList.contains(eachConnection)) {
+                                            leftList.add(eachConnection);
+                                        }
+                                    }
+
+                                    for (RespokeConnection eachConnection : nameList) {
+                                        if (!members.contains(eachConnection)) {
+                                            joinedList.add(eachConnection);
+                                        }
+                                    }
+                                }
+
+                                members.clear();
+                                members.addAll(nameList);
+                            }
+
+                            if (!joinedList.isEmpty() || !leftList.isEmpty()) {
+                                for (RespokeConnection eachConnection : leftList) {
+                                    membershipChanged(eachConnection, false);
+                                }
+
+                                for (RespokeConnection eachConnection : joinedList) {
+                                    membershipChanged(eachConnection, true);
+                                }
+
+                                // Delivered as one batch, like the changes of a frame from the server
+                                frameComplete();
+                            }
 
                             queueRunnable(new Runnable() {
                                 @Override
@@ -224,6 +360,25 @@ public class RespokeGroup {
     }
 
 
+    /**
+     *  Collect the endpoints of the cached members of this group, which the client keeps out of its endpoint cache
+     *  eviction so that the member list the app sees stays intact
+     *
+     *  @param memberEndpoints  The set to add the endpoints to
+     */
+    void addMemberEndpointsTo(Set<RespokeEndpoint> memberEndpoints) {
+        synchronized (members) {
+            for (RespokeConnection eachMember : members) {
+                RespokeEndpoint endpoint = eachMember.getEndpoint();
+
+                if (null != endpoint) {
+                    memberEndpoints.add(endpoint);
+                }
+            }
+        }
+    }
+
+
     public boolean isJoined() {
         return joined && (null != signalingChannel) && (signalingChannel.connected);
     }
@@ -234,8 +389,36 @@ public class RespokeGroup {
     }
 
 
+    /**
+     *  Use the signaling channel of the connection the client has reconnected with. The client rejoins the group on
+     *  the new connection.
+     *
+     *  @param channel  The new signaling channel
+     */
+    void setSignalingChannel(RespokeSignalingChannel channel) {
+        signalingChannel = channel;
+    }
+
+
+    /**
+     *  Record that the client is no longer a member of this group, i.e. because rejoining it after a reconnect failed
+     */
+    void didLeave() {
+        joined = false;
+    }
+
+
+    /**
+     *  @return true unless the client has left this group, whether or not it is connected right now
+     */
+    boolean isMember() {
+        return joined;
+    }
+
+
     public void sendMessage(String message, boolean push, final Respoke.TaskCompletionListener completionListener) {
-        if (isJoined()) {
+        // Held in the outbox of the client while it is reconnecting
+        if (joined && (null != signalingChannel) && signalingChannel.isAcceptingRequests()) {
             if ((null != groupID) && (groupID.length() > 0)) {
                 RespokeClient client = clientReference.get();
                 if (null != client) {
@@ -254,7 +437,7 @@ public class RespokeGroup {
 
                     String urlEndpoint = "/v1/channels/" + groupID + "/publish/";
 
-                    signalingChannel.sendRESTMessage("post", urlEndpoint, data, new RespokeSignalingChannel.RESTListener() {
+                    signalingChannel.sendRESTMessage("post", urlEndpoint, data, RespokeWorkerThread.Priority.BULK, new RespokeSignalingChannel.RESTListener() {
                         @Override
                         public void onSuccess(Object response) {
                             Respoke.postTaskSuccess(completionListener);
@@ -278,32 +461,148 @@ public class RespokeGroup {
 
 
     public void connectionDidJoin(final RespokeConnection connection) {
-        members.add(connection);
+        synchronized (members) {
+            members.add(connection);
+        }
 
-        queueRunnable(new Runnable() {
-            @Override
-            public void run() {
-                Listener listener = listenerReference.get();
-                if (null != listener) {
-                    listener.onJoin(connection, RespokeGroup.this);
-                }
-            }
-        });
+        membershipChanged(connection, true);
     }
 
 
     public void connectionDidLeave(final RespokeConnection connection) {
-        members.remove(connection);
+        synchronized (members) {
+            members.remove(connection);
+        }
 
-        queueRunnable(new Runnable() {
+        membershipChanged(connection, false);
+    }
+
+
+    /**
+     *  Record a membership change, cancelling it out against an opposite change that has not been delivered yet
+     *
+     *  @param connection  The connection that joined or left
+     *  @param didJoin     true if the connection joined, false if it left
+     */
+    private void membershipChanged(RespokeConnection connection, boolean didJoin) {
+        boolean deliverNow = false;
+        boolean deferToFrame = false;
+
+        synchronized (pendingDelta) {
+            Boolean pending = pendingDelta.get(connection);
+
+            if ((null != pending) && (pending != didJoin)) {
+                // A join followed by a leave, or the other way round, leaves the membership as it was
+                pendingDelta.remove(connection);
+            } else {
+                pendingDelta.put(connection, didJoin);
+            }
+
+            if (0 == compactionWindow) {
+                // A batch listener receives the changes of one frame together, once the client flushes them at the end of the frame
+                Listener listener = (null != listenerReference) ? listenerReference.get() : null;
+                deliverNow = !(listener instanceof MembershipListener);
+                deferToFrame = !deliverNow;
+            } else if ((null == deltaFlushFuture) && !pendingDelta.isEmpty()) {
+                deltaFlushFuture = Respoke.sharedInstance().getScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushMembershipDelta(true);
+                    }
+                }, compactionWindow, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (deliverNow) {
+            flushMembershipDelta();
+        } else if (deferToFrame) {
+            RespokeClient client = clientReference.get();
+
+            if (null != client) {
+                client.groupDeltaPending(this);
+            }
+        }
+    }
+
+
+    /**
+     *  Deliver the membership changes that have been collected to the listener
+     */
+    void flushMembershipDelta() {
+        flushMembershipDelta(false);
+    }
+
+
+    /**
+     *  Deliver the membership changes of a frame from the server, unless they are being collected over a compaction
+     *  window, in which case they wait for the window to elapse
+     */
+    void frameComplete() {
+        synchronized (pendingDelta) {
+            if (0 != compactionWindow) {
+                return;
+            }
+        }
+
+        flushMembershipDelta();
+    }
+
+
+    /**
+     *  @param fromTimer  true if the compaction window elapsed, so that the listener must not be called on the timer thread
+     */
+    private void flushMembershipDelta(boolean fromTimer) {
+        final ArrayList<RespokeConnection> joinedList = new ArrayList<RespokeConnection>();
+        final ArrayList<RespokeConnection> leftList = new ArrayList<RespokeConnection>();
+        final LinkedHashMap<RespokeConnection, Boolean> changes;  // In the order the server sent them, for the listeners that receive one change at a time
+
+        synchronized (pendingDelta) {
+            if (null != deltaFlushFuture) {
+                deltaFlushFuture.cancel(false);
+                deltaFlushFuture = null;
+            }
+
+            changes = new LinkedHashMap<RespokeConnection, Boolean>(pendingDelta);
+
+            for (Map.Entry<RespokeConnection, Boolean> eachChange : pendingDelta.entrySet()) {
+                if (eachChange.getValue()) {
+                    joinedList.add(eachChange.getKey());
+                } else {
+                    leftList.add(eachChange.getKey());
+                }
+            }
+
+            pendingDelta.clear();
+        }
+
+        if (joinedList.isEmpty() && leftList.isEmpty()) {
+            return;
+        }
+
+        Runnable delivery = new Runnable() {
             @Override
             public void run() {
                 Listener listener = listenerReference.get();
-                if (null != listener) {
-                    listener.onLeave(connection, RespokeGroup.this);
+
+                if (listener instanceof MembershipListener) {
+                    ((MembershipListener) listener).onMembershipDelta(joinedList, leftList, RespokeGroup.this);
+                } else if (null != listener) {
+                    for (Map.Entry<RespokeConnection, Boolean> eachChange : changes.entrySet()) {
+                        if (eachChange.getValue()) {
+                            listener.onJoin(eachChange.getKey(), RespokeGroup.this);
+                        } else {
+                            listener.onLeave(eachChange.getKey(), RespokeGroup.this);
+                        }
+                    }
                 }
             }
-        });
+        };
+
+        if (fromTimer) {
+            queueTimedRunnable(delivery);
+        } else {
+            queueRunnable(delivery);
+        }
     }
 
 
@@ -0,0 +1,641 @@
+/**
+ * Copyright 2015, Digium, Inc. All rights reserved.
+ *
+ * This source code is licensed under The MIT License found in the LICENSE file
+ * in the root directory of this source tree.
+ *
+ * For all details and documentation: https://www.respoke.io
+ */
+package com.digium.respokesdk;
+
+import com.phono.srtplight.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the REST requests that could not be sent because the socket was not
+ * connected, i.e. the requests still waiting in the worker queue when the
+ * socket dropped, and the requests made through endpoints and groups while
+ * the client was reconnecting. Once the client has reconnected they are
+ * sent again in the order they were made, encoded with the new app token.
+ *
+ * The outbox is bounded. A request made with a deduplication key replaces
+ * the waiting request with the same key, i.e. only the latest presence is
+ * sent. Every request has a time to live, after which it fails instead of
+ * being sent. Requests may also be kept in an append-only journal in a
+ * memory-mapped file, so that they survive the process being killed and
+ * are sent by the next client to connect with the outbox as the same
+ * endpoint of the same app. The requests restored from the journal have no
+ * listener. An outbox belongs to one client at a time.
+ *
+ * Call signaling and the requests the client makes itself on every
+ * connection, such as the presence registrations, are never held, since
+ * they belong to the connection that was lost.
+ */
+public class RespokeOutbox {
+
+    private static final String TAG = "RespokeOutbox: ";
+    public static final int DEFAULT_MAX_REQUESTS = 500;
+    public static final long DEFAULT_TTL_MILLIS = 60000;
+    public static final int DEFAULT_JOURNAL_SIZE = 1024 * 1024;
+
+    private static final int JOURNAL_MAGIC = 0x524f4258;  ///< "ROBX"
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 8;  ///< The length, the kind of record and the request ID
+
+    /**
+     * A request waiting to be sent
+     */
+    static class Request {
+
+        final long requestID;
+        final String httpMethod;
+        final String url;
+        final JSONObject data;
+        final RespokeWorkerThread.Priority priority;
+        final String dedupKey;
+        final long expiresAt;  ///< When the request fails instead of being sent, in milliseconds since the epoch
+        final String appID;  ///< The app of the client that made the request, or null in brokered mode
+        final String endpointID;  ///< The endpoint of the client that made the request
+        final RespokeSignalingChannel.RESTListener listener;
+
+        Request(long requestID, String httpMethod, String url, JSONObject data, RespokeWorkerThread.Priority priority, String dedupKey, long expiresAt, String appID, String endpointID, RespokeSignalingChannel.RESTListener listener) {
+            this.requestID = requestID;
+            this.httpMethod = httpMethod;
+            this.url = url;
+            this.data = data;
+            this.priority = priority;
+            this.dedupKey = dedupKey;
+            this.expiresAt = expiresAt;
+            this.appID = appID;
+            this.endpointID = endpointID;
+            this.listener = listener;
+        }
+
+        /**
+         * @return true if the request was made by the client connected as this endpoint of this app
+         */
+        boolean isOwnedBy(String ownerAppID, String ownerEndpointID) {
+            return ((null == appID) ? (null == ownerAppID) : appID.equals(ownerAppID))
+                    && (null != endpointID) && endpointID.equals(ownerEndpointID);
+        }
+    }
+
+    private final int maxRequests;
+    private final long defaultTTLMillis;
+    private final LinkedHashMap<Long, Request> requests;  ///< The waiting requests by ID, in the order they were made
+    private long nextRequestID;
+    private boolean accepting;
+    private long expiredCount;
+    private long rejectedCount;
+    private String ownerAppID;  ///< The app of the client using the outbox, or null in brokered mode
+    private String ownerEndpointID;  ///< The endpoint of the client using the outbox, or null if it has not connected yet
+    private ScheduledFuture<?> expiryFuture;  ///< The scheduled expiry of the request that expires first
+    private long expiryAt;  ///< When the scheduled expiry runs, in milliseconds since the epoch
+    private RandomAccessFile journalFile;
+    private MappedByteBuffer journal;  ///< The journal, or null if the requests are kept in memory only
+    private volatile RespokeDispatcher dispatcher = RespokeDispatcher.INLINE;  ///< Delivers the failures to the listeners, off the scheduler that expires the requests
+
+    /**
+     * Create an outbox with the default limits
+     */
+    public RespokeOutbox() {
+        this(DEFAULT_MAX_REQUESTS, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param maxRequests The number of requests the outbox may hold. Requests beyond it fail straight away
+     * @param defaultTTLMillis How long a request may wait when it is made without a time to live of its own, in milliseconds
+     */
+    public RespokeOutbox(int maxRequests, long defaultTTLMillis) {
+        this.maxRequests = Math.max(1, maxRequests);
+        this.defaultTTLMillis = Math.max(1, defaultTTLMillis);
+        requests = new LinkedHashMap<Long, Request>();
+        accepting = true;
+    }
+
+    /**
+     * Keep the requests in a memory-mapped journal. Requests already in the
+     * journal that have not expired are restored, and are sent once a
+     * client using this outbox has connected. Writes to the mapping survive
+     * the process being killed without being forced to disk.
+     *
+     * @param file The journal file, which is created if it does not exist
+     * @param capacity The size of the journal, in bytes
+     *
+     * @throws IOException if the file can not be mapped
+     */
+    public synchronized void setJournal(File file, int capacity) throws IOException {
+        closeJournal();
+
+        RandomAccessFile newFile = new RandomAccessFile(file, "rw");
+        long size = Math.max(newFile.length(), Math.max(capacity, 4096));
+
+        try {
+            journal = newFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            journalFile = newFile;
+        } catch (IOException e) {
+            newFile.close();
+            throw e;
+        }
+
+        if (JOURNAL_MAGIC == journal.getInt(0)) {
+            restoreJournal();
+        }
+
+        // Start the journal over with only the live requests, to reclaim the space of the removed ones
+        compactJournal();
+        scheduleExpiry();
+    }
+
+    /**
+     * Stop keeping the requests in the journal. The requests are still held in memory.
+     */
+    public synchronized void closeJournal() {
+        journal = null;
+
+        if (null != journalFile) {
+            try {
+                journalFile.close();
+            } catch (IOException e) {
+                // Nothing more to do
+            }
+
+            journalFile = null;
+        }
+    }
+
+    /**
+     * @return The number of requests waiting to be sent
+     */
+    public synchronized int size() {
+        return requests.size();
+    }
+
+    /**
+     * @return The number of requests that failed because their time to live ran out before they could be sent
+     */
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * @return The number of requests that failed because the outbox was full
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * @param shouldAccept false to fail new requests, i.e. because the client will not reconnect
+     */
+    synchronized void setAccepting(boolean shouldAccept) {
+        accepting = shouldAccept;
+    }
+
+    synchronized boolean isAccepting() {
+        return accepting;
+    }
+
+    /**
+     * Set the client that uses the outbox. The requests held from now on
+     * belong to it, and only its own requests are replayed.
+     *
+     * @param appID The app ID of the client, or null in brokered mode
+     * @param endpointID The endpoint ID the client is connected as
+     */
+    synchronized void setOwner(String appID, String endpointID) {
+        ownerAppID = appID;
+        ownerEndpointID = endpointID;
+    }
+
+    /**
+     * Set the dispatcher of the client that uses the outbox, which notifies
+     * the listeners of the requests that fail
+     *
+     * @param newDispatcher The dispatcher of the client
+     */
+    void setDispatcher(RespokeDispatcher newDispatcher) {
+        dispatcher = (null != newDispatcher) ? newDispatcher : RespokeDispatcher.INLINE;
+    }
+
+    /**
+     * Hold a request until the client has reconnected
+     *
+     * @param httpMethod The HTTP method of the request
+     * @param url The url of the request
+     * @param data The body of the request, or null
+     * @param priority The priority of the request
+     * @param dedupKey The key of the request, which replaces a waiting request with the same key, or null
+     * @param ttlMillis How long the request may wait, in milliseconds, or 0 for the default of the outbox
+     * @param listener The listener to notify once the request has been sent, or has failed
+     *
+     * @return false if the outbox is not accepting requests, in which case the caller is responsible for failing it. A request that does not fit in the outbox is taken and failed straight away
+     */
+    boolean add(String httpMethod, String url, JSONObject data, RespokeWorkerThread.Priority priority, String dedupKey, long ttlMillis, RespokeSignalingChannel.RESTListener listener) {
+        Request replaced = null;
+        Request request;
+
+        synchronized (this) {
+            if (!accepting) {
+                return false;
+            }
+
+            if (null != dedupKey) {
+                replaced = removeByKey(dedupKey);
+            }
+
+            if (requests.size() >= maxRequests) {
+                rejectedCount++;
+                request = null;
+            } else {
+                long expiresAt = System.currentTimeMillis() + ((ttlMillis > 0) ? ttlMillis : defaultTTLMillis);
+                request = new Request(nextRequestID++, httpMethod, url, data, priority, dedupKey, expiresAt, ownerAppID, ownerEndpointID, listener);
+                requests.put(request.requestID, request);
+                journalAdd(request);
+                scheduleExpiry();
+            }
+        }
+
+        if (null != replaced) {
+            fail(replaced.listener, "Replaced by a newer request");
+        }
+
+        if (null == request) {
+            fail(listener, "Too many requests waiting to be sent");
+        }
+
+        return true;
+    }
+
+    /**
+     * Send every waiting request of the owner on a channel that has just
+     * connected, in the order they were made. Requests whose time to live
+     * has run out fail instead, and requests made as another endpoint or
+     * for another app are dropped, since the new app token is not theirs.
+     *
+     * @param channel The connected channel
+     */
+    void replay(RespokeSignalingChannel channel) {
+        ArrayList<Request> ready = new ArrayList<Request>();
+        ArrayList<Request> expired = new ArrayList<Request>();
+        ArrayList<Request> foreign = new ArrayList<Request>();
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+
+            for (Request eachRequest : requests.values()) {
+                if (!eachRequest.isOwnedBy(ownerAppID, ownerEndpointID)) {
+                    foreign.add(eachRequest);
+                } else if (eachRequest.expiresAt > now) {
+                    ready.add(eachRequest);
+                } else {
+                    expired.add(eachRequest);
+                }
+            }
+
+            expiredCount += expired.size();
+            requests.clear();
+            compactJournal();
+            scheduleExpiry();
+        }
+
+        if (ready.size() > 0) {
+            Log.debug(TAG + "Replaying " + ready.size() + " requests");
+        }
+
+        if (foreign.size() > 0) {
+            Log.debug(TAG + "Dropping " + foreign.size() + " requests made by another endpoint");
+        }
+
+        failAll(expired, "Request expired before it could be sent");
+        failAll(foreign, "Request was made by another endpoint");
+
+        for (Request eachRequest : ready) {
+            RespokeSignalingChannel.RESTListener listener = eachRequest.listener;
+
+            if (null == listener) {
+                // Restored from the journal, so nobody is waiting for the result
+                final String url = eachRequest.url;
+                listener = new RespokeSignalingChannel.RESTListener() {
+                    @Override
+                    public void onSuccess(Object response) {
+                        // do nothing
+                    }
+
+                    @Override
+                    public void onError(String errorMessage) {
+                        Log.debug(TAG + "Restored request to " + url + " failed: " + errorMessage);
+                    }
+                };
+            }
+
+            channel.sendRESTMessage(eachRequest.httpMethod, eachRequest.url, eachRequest.data, eachRequest.priority, eachRequest.dedupKey, Math.max(1, eachRequest.expiresAt - System.currentTimeMillis()), listener);
+        }
+    }
+
+    /**
+     * Fail every waiting request, i.e. because the client will not reconnect
+     *
+     * @param errorMessage The error to report to their listeners
+     */
+    void clear(String errorMessage) {
+        ArrayList<Request> removed;
+
+        synchronized (this) {
+            removed = new ArrayList<Request>(requests.values());
+            requests.clear();
+            compactJournal();
+            scheduleExpiry();
+        }
+
+        failAll(removed, errorMessage);
+    }
+
+    /**
+     * Fail the requests whose time to live has run out, so that their
+     * listeners learn of it even if the client never reconnects
+     */
+    private void expire() {
+        ArrayList<Request> expired = new ArrayList<Request>();
+
+        synchronized (this) {
+            expiryFuture = null;
+            long now = System.currentTimeMillis();
+            Iterator<Request> iterator = requests.values().iterator();
+
+            while (iterator.hasNext()) {
+                Request eachRequest = iterator.next();
+
+                if (eachRequest.expiresAt <= now) {
+                    iterator.remove();
+                    journalRemove(eachRequest.requestID);
+                    expired.add(eachRequest);
+                }
+            }
+
+            expiredCount += expired.size();
+            scheduleExpiry();
+        }
+
+        failAll(expired, "Request expired before it could be sent");
+    }
+
+    /**
+     * Schedule the expiry of the request that expires first on the shared
+     * scheduler, unless it is already scheduled. Must be called with the
+     * outbox locked.
+     */
+    private void scheduleExpiry() {
+        long firstExpiry = Long.MAX_VALUE;
+
+        for (Request eachRequest : requests.values()) {
+            firstExpiry = Math.min(firstExpiry, eachRequest.expiresAt);
+        }
+
+        if ((null != expiryFuture) && (expiryAt <= firstExpiry)) {
+            // Already due in time. If the request it was scheduled for has gone, it runs early and reschedules
+            return;
+        }
+
+        if (null != expiryFuture) {
+            expiryFuture.cancel(false);
+            expiryFuture = null;
+        }
+
+        if (Long.MAX_VALUE != firstExpiry) {
+            expiryAt = firstExpiry;
+            expiryFuture = Respoke.sharedInstance().getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expire();
+                }
+            }, Math.max(0, firstExpiry - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Notify the listeners of failed requests through the dispatcher, since
+     * the caller may be the shared scheduler, which must not run application
+     * code. The failures are delivered in the order of the list.
+     */
+    private void failAll(final ArrayList<Request> failed, final String errorMessage) {
+        if (failed.isEmpty()) {
+            return;
+        }
+
+        dispatcher.dispatchDeferred(this, new Runnable() {
+            @Override
+            public void run() {
+                for (Request eachRequest : failed) {
+                    if (null != eachRequest.listener) {
+                        eachRequest.listener.onError(errorMessage);
+                    }
+                }
+            }
+        });
+    }
+
+    private void fail(final RespokeSignalingChannel.RESTListener listener, final String errorMessage) {
+        if (null == listener) {
+            return;
+        }
+
+        dispatcher.dispatchDeferred(this, new Runnable() {
+            @Override
+            public void run() {
+                listener.onError(errorMessage);
+            }
+        });
+    }
+
+    private Request removeByKey(String dedupKey) {
+        Iterator<Request> iterator = requests.values().iterator();
+
+        while (iterator.hasNext()) {
+            Request eachRequest = iterator.next();
+
+            if (dedupKey.equals(eachRequest.dedupKey)) {
+                iterator.remove();
+                journalRemove(eachRequest.requestID);
+                return eachRequest;
+            }
+        }
+
+        return null;
+    }
+
+    private void journalAdd(Request request) {
+        if (null == journal) {
+            return;
+        }
+
+        byte[] payload = journalRecord(request);
+
+        if ((null != payload) && !appendRecord(RECORD_ADD, request.requestID, payload)) {
+            // Compacting writes the new request along with the other live ones, if they fit
+            compactJournal();
+        }
+    }
+
+    /**
+     * @return The request encoded for the journal, or null if it can not be encoded
+     */
+    private static byte[] journalRecord(Request request) {
+        try {
+            JSONObject record = new JSONObject();
+            record.put("method", request.httpMethod);
+            record.put("url", request.url);
+            record.put("priority", request.priority.name());
+            record.put("expiresAt", request.expiresAt);
+
+            if (null != request.appID) {
+                record.put("appID", request.appID);
+            }
+
+            if (null != request.endpointID) {
+                record.put("endpointID", request.endpointID);
+            }
+
+            if (null != request.data) {
+                record.put("data", request.data);
+            }
+
+            if (null != request.dedupKey) {
+                record.put("key", request.dedupKey);
+            }
+
+            return record.toString().getBytes("UTF-8");
+        } catch (JSONException e) {
+            Log.error(TAG + "Unable to journal request: " + e.getMessage());
+        } catch (UnsupportedEncodingException e) {
+            Log.error(TAG + "Unable to journal request: " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    private void journalRemove(long requestID) {
+        if ((null != journal) && !appendRecord(RECORD_REMOVE, requestID, new byte[0])) {
+            // Compacting drops the removed request along with every other dead record
+            compactJournal();
+        }
+    }
+
+    /**
+     * Append a record at the end of the journal, followed by the zero length that marks the end
+     *
+     * @return false if there is no room for the record
+     */
+    private boolean appendRecord(byte kind, long requestID, byte[] payload) {
+        int length = RECORD_HEADER_SIZE + payload.length;
+        int position = journal.position();
+
+        if (position + length + 4 > journal.capacity()) {
+            return false;
+        }
+
+        // The end marker is written first and the length last, so that a partly written record is never read back
+        journal.putInt(position + length, 0);
+        journal.position(position + 4);
+        journal.put(kind);
+        journal.putLong(requestID);
+        journal.put(payload);
+        journal.putInt(position, length);
+
+        return true;
+    }
+
+    /**
+     * Rewrite the journal with the waiting requests only
+     */
+    private void compactJournal() {
+        if (null == journal) {
+            return;
+        }
+
+        journal.putInt(0, JOURNAL_MAGIC);
+        journal.putInt(4, 0);
+        journal.position(4);
+
+        for (Request eachRequest : requests.values()) {
+            byte[] payload = journalRecord(eachRequest);
+
+            if ((null != payload) && !appendRecord(RECORD_ADD, eachRequest.requestID, payload)) {
+                Log.error(TAG + "Journal full, request to " + eachRequest.url + " is only held in memory");
+            }
+        }
+    }
+
+    private void restoreJournal() {
+        LinkedHashMap<Long, Request> restored = new LinkedHashMap<Long, Request>();
+        long now = System.currentTimeMillis();
+        int position = 4;
+
+        while (position + RECORD_HEADER_SIZE <= journal.capacity()) {
+            int length = journal.getInt(position);
+
+            if ((length < RECORD_HEADER_SIZE) || (position + length > journal.capacity())) {
+                break;
+            }
+
+            byte kind = journal.get(position + 4);
+            long requestID = journal.getLong(position + 5);
+
+            if (RECORD_ADD == kind) {
+                byte[] payload = new byte[length - RECORD_HEADER_SIZE];
+
+                for (int ii = 0; ii < payload.length; ii++) {
+                    payload[ii] = journal.get(position + RECORD_HEADER_SIZE + ii);
+                }
+
+                try {
+                    JSONObject record = new JSONObject(new String(payload, "UTF-8"));
+                    long expiresAt = record.getLong("expiresAt");
+
+                    if (expiresAt > now) {
+                        restored.put(requestID, new Request(requestID, record.getString("method"), record.getString("url"),
+                                record.optJSONObject("data"), RespokeWorkerThread.Priority.valueOf(record.getString("priority")),
+                                record.optString("key", null), expiresAt, record.optString("appID", null),
+                                record.optString("endpointID", null), null));
+                    }
+                } catch (JSONException e) {
+                    Log.debug(TAG + "Skipping damaged journal record");
+                } catch (IllegalArgumentException e) {
+                    Log.debug(TAG + "Skipping damaged journal record");
+                } catch (UnsupportedEncodingException e) {
+                    Log.debug(TAG + "Skipping damaged journal record");
+                }
+            } else if (RECORD_REMOVE == kind) {
+                restored.remove(requestID);
+            }
+
+            position += length;
+        }
+
+        for (Request eachRequest : restored.values()) {
+            if (requests.size() < maxRequests) {
+                requests.put(eachRequest.requestID, eachRequest);
+                nextRequestID = Math.max(nextRequestID, eachRequest.requestID + 1);
+            }
+        }
+
+        if (restored.size() > 0) {
+            Log.debug(TAG + "Restored " + restored.size() + " requests from the journal");
+        }
+    }
+}
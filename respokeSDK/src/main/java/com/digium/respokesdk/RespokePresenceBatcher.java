@@ -0,0 +1,170 @@
+/**
+ * Copyright 2015, Digium, Inc. All rights reserved.
+ *
+ * This source code is licensed under The MIT License found in the LICENSE file
+ * in the root directory of this source tree.
+ *
+ * For all details and documentation: https://www.respoke.io
+ */
+package com.digium.respokesdk;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the endpoint IDs that need to be registered for presence updates
+ * and hands them over in batches. A batch is sent when the window has passed
+ * since the first ID of the batch was queued, or as soon as enough IDs are
+ * queued to fill a batch, so that a large group roster results in a handful of
+ * requests rather than one request per member.
+ */
+class RespokePresenceBatcher {
+
+    static final long DEFAULT_WINDOW_MILLIS = 50;
+    static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+    /**
+     * Receives the batches of endpoint IDs to register
+     */
+    interface Sink {
+
+        /**
+         * @param endpointIDs The endpoint IDs to register, never more than the maximum batch size
+         */
+        void registerBatch(ArrayList<String> endpointIDs);
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final Sink sink;
+    private final LinkedHashSet<String> queue; ///< The endpoint IDs waiting to be sent, oldest first
+    private long windowMillis; ///< How long to wait for more IDs before sending a batch
+    private int maxBatchSize; ///< The largest number of IDs to send in one request
+    private ScheduledFuture<?> flushFuture; ///< The scheduled flush, or null if none is scheduled
+    private final Runnable flusher;
+
+    RespokePresenceBatcher(ScheduledExecutorService scheduler, Sink sink) {
+        this.scheduler = scheduler;
+        this.sink = sink;
+        queue = new LinkedHashSet<String>();
+        windowMillis = DEFAULT_WINDOW_MILLIS;
+        maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+        flusher = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+    }
+
+    /**
+     * @param newWindowMillis How long to wait for more IDs before sending a batch, in milliseconds. 0 sends every ID on the scheduler straight away
+     * @param newMaxBatchSize The largest number of IDs to send in one request
+     */
+    synchronized void setWindow(long newWindowMillis, int newMaxBatchSize) {
+        windowMillis = Math.max(0, newWindowMillis);
+        maxBatchSize = Math.max(1, newMaxBatchSize);
+    }
+
+    synchronized long getWindowMillis() {
+        return windowMillis;
+    }
+
+    synchronized int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * Queue an endpoint ID for registration. IDs that are already queued are ignored.
+     *
+     * @param endpointID The endpoint ID to register
+     */
+    void add(String endpointID) {
+        ArrayList<String> fullBatch = null;
+
+        synchronized (this) {
+            if (!queue.add(endpointID)) {
+                return;
+            }
+
+            if (queue.size() >= maxBatchSize) {
+                fullBatch = takeBatch();
+
+                if (queue.isEmpty()) {
+                    cancelFlush();
+                }
+            } else if (null == flushFuture) {
+                flushFuture = scheduler.schedule(flusher, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (null != fullBatch) {
+            sink.registerBatch(fullBatch);
+        }
+    }
+
+    /**
+     * Stop waiting for an endpoint ID, i.e. because the endpoint is no longer of interest
+     *
+     * @param endpointID The endpoint ID to forget
+     *
+     * @return true if the endpoint ID was still queued, false if it had already been handed to the sink or was never queued
+     */
+    synchronized boolean remove(String endpointID) {
+        return queue.remove(endpointID);
+    }
+
+    /**
+     * Send every queued endpoint ID now, in as many batches as necessary
+     */
+    void flush() {
+        ArrayList<ArrayList<String>> batches = new ArrayList<ArrayList<String>>();
+
+        synchronized (this) {
+            cancelFlush();
+
+            while (!queue.isEmpty()) {
+                batches.add(takeBatch());
+            }
+        }
+
+        for (ArrayList<String> eachBatch : batches) {
+            sink.registerBatch(eachBatch);
+        }
+    }
+
+    /**
+     * Forget every queued endpoint ID, i.e. because the client has disconnected
+     */
+    synchronized void clear() {
+        cancelFlush();
+        queue.clear();
+    }
+
+    private ArrayList<String> takeBatch() {
+        ArrayList<String> batch = new ArrayList<String>(Math.min(queue.size(), maxBatchSize));
+        Iterator<String> iterator = queue.iterator();
+
+        while (iterator.hasNext() && (batch.size() < maxBatchSize)) {
+            batch.add(iterator.next());
+            iterator.remove();
+        }
+
+        return batch;
+    }
+
+    private void cancelFlush() {
+        if (null != flushFuture) {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+    }
+}
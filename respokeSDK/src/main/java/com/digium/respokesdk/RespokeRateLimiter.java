@@ -0,0 +1,135 @@
+/**
+ * Copyright 2015, Digium, Inc. All rights reserved.
+ *
+ * This source code is licensed under The MIT License found in the LICENSE file
+ * in the root directory of this source tree.
+ *
+ * For all details and documentation: https://www.respoke.io
+ */
+package com.digium.respokesdk;
+
+/**
+ * A token bucket that paces outgoing REST requests so that they stay within
+ * the rate limit of the Respoke service. The bucket learns its size from the
+ * RateLimit-Limit header of the responses, and allows any number of requests
+ * until the first such header has been seen.
+ */
+class RespokeRateLimiter {
+
+    private int limit; ///< The number of requests allowed per second, or 0 if not known yet
+    private double tokens; ///< The requests that may be sent right now. Negative while reservations are waiting for the bucket to refill
+    private long lastRefill; ///< When the tokens were last refilled, in nanoseconds
+    private long reservationCount; ///< The number of tokens taken so far, which numbers the reservations
+
+    RespokeRateLimiter() {
+        lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Update the bucket size from a RateLimit-Limit header
+     *
+     * @param newLimit The number of requests allowed per second
+     */
+    synchronized void setLimit(int newLimit) {
+        if ((newLimit > 0) && (newLimit != limit)) {
+            refill();
+
+            if (0 == limit) {
+                // First time the limit is known, start with a full bucket
+                tokens = newLimit;
+            } else {
+                tokens = Math.min(tokens, newLimit);
+            }
+
+            limit = newLimit;
+        }
+    }
+
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Update the tokens from a RateLimit-Remaining header, in case other
+     * connections of the same app are using part of the budget. The server
+     * counted the requests it had received when it replied, so only the
+     * requests reserved after the one that carried the header are taken off
+     * what it reports. The requests before it are not taken off twice.
+     *
+     * @param remaining The number of requests the server says may still be sent
+     * @param reservation The number of the reservation of the request whose response carried the header
+     */
+    synchronized void setRemaining(int remaining, long reservation) {
+        if (limit > 0) {
+            refill();
+            tokens = Math.min(limit, remaining - (reservationCount - reservation));
+        }
+    }
+
+    /**
+     * Note that the server rejected a request because the limit was exceeded,
+     * so no more requests are sent until the bucket refills
+     */
+    synchronized void rateLimited() {
+        if (limit > 0) {
+            refill();
+            tokens = Math.min(tokens, 0);
+        }
+    }
+
+    /**
+     * Take a token for a request that is about to be sent
+     *
+     * @return The number of the reservation, to hand back with the RateLimit-Remaining header of its response
+     */
+    synchronized long reserve() {
+        reservationCount++;
+
+        if (limit > 0) {
+            refill();
+            tokens -= 1;
+        }
+
+        return reservationCount;
+    }
+
+    /**
+     * @return How long until a request may be sent without being delayed, in milliseconds
+     */
+    synchronized long millisUntilToken() {
+        if (0 == limit) {
+            return 0;
+        }
+
+        refill();
+
+        if (tokens >= 1) {
+            return 0;
+        }
+
+        return (long) Math.ceil((1 - tokens) * 1000 / limit);
+    }
+
+    /**
+     * @return The number of requests that may be sent right now without being delayed, or -1 if the limit is not known yet
+     */
+    synchronized int getRemaining() {
+        if (0 == limit) {
+            return -1;
+        }
+
+        refill();
+
+        return (int) Math.max(0, Math.floor(tokens));
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+
+        if (limit > 0) {
+            tokens = Math.min(limit, tokens + (now - lastRefill) * limit / 1e9);
+        }
+
+        lastRefill = now;
+    }
+}
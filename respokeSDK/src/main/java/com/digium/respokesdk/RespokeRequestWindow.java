@@ -0,0 +1,142 @@
+/**
+ * Copyright 2015, Digium, Inc. All rights reserved.
+ *
+ * This source code is licensed under The MIT License found in the LICENSE file
+ * in the root directory of this source tree.
+ *
+ * For all details and documentation: https://www.respoke.io
+ */
+package com.digium.respokesdk;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Tracks the REST requests that have been emitted on the socket and are still
+ * waiting for their acknowledgement, and limits how many of them may be
+ * outstanding at the same time. Each request is correlated with the listener
+ * that is waiting for its response.
+ */
+class RespokeRequestWindow {
+
+    /**
+     * A request that has been emitted and has not been acknowledged yet
+     */
+    static class PendingRequest {
+
+        final int requestID;
+        final RespokeSignalingChannel.RESTListener listener;
+        final long sentAt;
+
+        PendingRequest(int requestID, RespokeSignalingChannel.RESTListener listener, long sentAt) {
+            this.requestID = requestID;
+            this.listener = listener;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private final LinkedHashMap<Integer, PendingRequest> pending; ///< The outstanding requests, oldest first
+    private int maxInFlight; ///< The number of requests which may be outstanding at once
+    private int nextRequestID;
+
+    RespokeRequestWindow(int maxInFlight) {
+        pending = new LinkedHashMap<Integer, PendingRequest>();
+        setMaxInFlight(maxInFlight);
+    }
+
+    synchronized void setMaxInFlight(int newMax) {
+        maxInFlight = Math.max(1, newMax);
+    }
+
+    synchronized int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    synchronized int getInFlight() {
+        return pending.size();
+    }
+
+    synchronized boolean hasRoom() {
+        return pending.size() < maxInFlight;
+    }
+
+    /**
+     * @param timeoutMillis The age after which a request is considered lost
+     *
+     * @return How long until the oldest outstanding request is considered lost, in milliseconds, or 0 if it already is
+     */
+    synchronized long millisUntilExpiry(long timeoutMillis) {
+        if (pending.isEmpty()) {
+            return 0;
+        }
+
+        PendingRequest oldest = pending.values().iterator().next();
+
+        return Math.max(0, oldest.sentAt + timeoutMillis - System.currentTimeMillis());
+    }
+
+    /**
+     * Record that a request is about to be emitted
+     *
+     * @param listener The listener waiting for the response
+     *
+     * @return The pending request which must be passed to close() when the acknowledgement arrives
+     */
+    synchronized PendingRequest open(RespokeSignalingChannel.RESTListener listener) {
+        PendingRequest request = new PendingRequest(nextRequestID++, listener, System.currentTimeMillis());
+        pending.put(request.requestID, request);
+
+        return request;
+    }
+
+    /**
+     * Record that the acknowledgement for a request has arrived
+     *
+     * @param request The request that was acknowledged
+     *
+     * @return true if the request was still outstanding, false if it has already been expired or failed
+     */
+    synchronized boolean close(PendingRequest request) {
+        return null != pending.remove(request.requestID);
+    }
+
+    /**
+     * Remove the requests that have been waiting for an acknowledgement for too long
+     *
+     * @param timeoutMillis The age after which a request is considered lost
+     *
+     * @return The requests that were removed, so that their listeners may be notified
+     */
+    synchronized ArrayList<PendingRequest> expire(long timeoutMillis) {
+        ArrayList<PendingRequest> expired = new ArrayList<PendingRequest>();
+        long cutoff = System.currentTimeMillis() - timeoutMillis;
+        Iterator<PendingRequest> iterator = pending.values().iterator();
+
+        while (iterator.hasNext()) {
+            PendingRequest eachRequest = iterator.next();
+
+            if (eachRequest.sentAt > cutoff) {
+                // Requests are kept in the order they were sent, so the rest are younger still
+                break;
+            }
+
+            expired.add(eachRequest);
+            iterator.remove();
+        }
+
+        return expired;
+    }
+
+    /**
+     * Remove every outstanding request, i.e. because the socket has gone away
+     *
+     * @return The requests that were removed, so that their listeners may be notified
+     */
+    synchronized ArrayList<PendingRequest> clear() {
+        ArrayList<PendingRequest> removed = new ArrayList<PendingRequest>(pending.values());
+        pending.clear();
+
+        return removed;
+    }
+}
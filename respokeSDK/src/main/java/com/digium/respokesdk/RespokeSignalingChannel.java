@@ -19,14 +19,19 @@ import com.github.nkzawa.socketio.client.IO;
 import com.github.nkzawa.socketio.client.Socket;
 import com.phono.srtplight.Log;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 
 /**
  * The purpose of this class is to make a method call for each API call to the
@@ -37,8 +42,12 @@ import java.util.concurrent.TimeUnit;
 public class RespokeSignalingChannel {
 
     private static final String TAG = "RespokeSignalingChannel: ";
+    private static final String RESPOKE_SOCKETIO_HOST = "api.respoke.io";
     private static final String RESPOKE_SOCKETIO_PORT = "443";
+    private static final int WARM_UP_TIMEOUT = 10000;  ///< How long the warm up may take to connect or to complete the handshake, in milliseconds
+    private static final AtomicBoolean warmUpInProgress = new AtomicBoolean();  ///< Only one warm up runs at a time, however many clients connect
     private static final Integer REST_TASK_TIMEOUT = 30;
+    private static final int DEFAULT_MAX_REQUESTS_IN_FLIGHT = 1;
 
     public boolean connected;
     private WeakReference<Listener> listenerReference;
@@ -46,7 +55,20 @@ public class RespokeSignalingChannel {
     private String connectionID;
     private String baseURL;
     private RespokeWorkerThread workerThread;
+    private RespokeRequestWindow requestWindow;
+    private RespokeRateLimiter rateLimiter;
+    private volatile RespokeDispatcher signalDispatcher = RespokeDispatcher.INLINE;
+    private volatile RespokeDispatcher completionDispatcher = RespokeDispatcher.INLINE;  ///< Delivers the failures of requests raised on the shared scheduler
+    private RespokeCandidateCoalescer candidateCoalescer;
+    private final RespokeEnvelopeEncoder envelopeEncoder = new RespokeEnvelopeEncoder();
+    private final RespokeEventDecoder eventDecoder = new RespokeEventDecoder();
     private Socket client;
+    private Socket connectingSocket;  ///< The socket while it is connecting, so that the attempt may be abandoned
+    private boolean connectErrorReported;
+    private RespokeConnectMetrics connectMetrics;  ///< Receives the timings of the socket and registration stages, or null
+    private JSONObject initialPresenceData;  ///< The presence to set along with the registration of the connection, or null
+    private RESTListener initialPresenceListener;
+    private volatile RespokeOutbox outbox;
     private Emitter.Listener onJoin;
     private Emitter.Listener onLeave;
     private Emitter.Listener onMessage;
@@ -170,6 +192,15 @@ public class RespokeSignalingChannel {
          */
         void onPresence(Object presence, String connectionID, String endpointID, RespokeSignalingChannel sender);
 
+        /**
+         * Receive a notification that every join, leave or presence event of
+         * one frame has been passed on, so that the changes they caused may
+         * be delivered to the app as one batch
+         *
+         * @param sender The signaling channel that triggered the event
+         */
+        void onEventBatchComplete(RespokeSignalingChannel sender);
+
         /**
          * Receive a notification from the signaling channel that a call has
          * been created
@@ -232,36 +263,312 @@ public class RespokeSignalingChannel {
 
     }
 
+    /**
+     * A REST request on its way to the socket, which is the task the worker
+     * runs to emit it
+     */
+    private class OutgoingRequest implements Runnable {
+
+        final String httpMethod;
+        final String url;
+        final JSONObject data;
+        final RespokeWorkerThread.Priority priority;
+        final String dedupKey;
+        final long ttlMillis;
+        final boolean replayable;  ///< Whether the request may be held in the outbox if the socket disconnects before it is sent
+        final RespokeEnvelopeEncoder.Envelope envelope;
+        final RESTListener listener;
+        int attempt = 1;
+        long reservation;  ///< The number of the rate limiter reservation of the latest attempt
+
+        OutgoingRequest(String httpMethod, String url, JSONObject data, RespokeWorkerThread.Priority priority, String dedupKey, long ttlMillis, boolean replayable, RespokeEnvelopeEncoder.Envelope envelope, RESTListener listener) {
+            this.httpMethod = httpMethod;
+            this.url = url;
+            this.data = data;
+            this.priority = priority;
+            this.dedupKey = dedupKey;
+            this.ttlMillis = ttlMillis;
+            this.replayable = replayable;
+            this.envelope = envelope;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            emitRequest(this);
+        }
+    }
+
     public RespokeSignalingChannel(String token, Listener newListener, String baseURL) {
         appToken = token;
         this.baseURL = baseURL;
         listenerReference = new WeakReference<Listener>(newListener);
-        workerThread = new RespokeWorkerThread("RespokeWorkerThread");
+        workerThread = new RespokeWorkerThread(Respoke.sharedInstance().getScheduler());
         workerThread.start();
         workerThread.prepareHandler();
-
+        requestWindow = new RespokeRequestWindow(DEFAULT_MAX_REQUESTS_IN_FLIGHT);
+        rateLimiter = new RespokeRateLimiter();
+        candidateCoalescer = new RespokeCandidateCoalescer(Respoke.sharedInstance().getScheduler(), new RespokeCandidateCoalescer.Sink() {
+            @Override
+            public void sendMergedSignal(JSONObject message, String toEndpointID, ArrayList<Respoke.TaskCompletionListener> completionListeners) {
+                postSignal(message, toEndpointID, completionListeners);
+            }
+        });
+        workerThread.setAdmission(new RespokeWorkerThread.Admission() {
+            @Override
+            public long admissionDelay() {
+                return requestAdmissionDelay();
+            }
+        });
     }
 
     public Listener GetListener() {
         return listenerReference.get();
     }
 
+    /**
+     * Set how many REST requests may be waiting for their acknowledgement from
+     * the server at the same time. The default of 1 sends each request only
+     * after the previous one has been answered. Larger values pipeline the
+     * requests on the socket, so throughput is bounded by the round trip time
+     * multiplied by the window rather than by the round trip time alone.
+     *
+     * @param maxRequests The size of the window, at least 1
+     */
+    public void setMaxRequestsInFlight(int maxRequests) {
+        requestWindow.setMaxInFlight(maxRequests);
+    }
+
+    public int getMaxRequestsInFlight() {
+        return requestWindow.getMaxInFlight();
+    }
+
+    /**
+     * @return The number of REST requests currently waiting for their acknowledgement
+     */
+    public int getRequestsInFlight() {
+        return requestWindow.getInFlight();
+    }
+
+    /**
+     * @return The number of REST requests per second the server allows, or -1 if the server has not reported it yet
+     */
+    public int getRateLimit() {
+        int limit = rateLimiter.getLimit();
+
+        return (limit > 0) ? limit : -1;
+    }
+
+    /**
+     * Get the number of REST requests that may be sent right now without being
+     * delayed to stay within the rate limit of the server. Apps may use this to
+     * hold back low value traffic when the budget is running out.
+     *
+     * @return The remaining budget, or -1 if the server has not reported its rate limit yet
+     */
+    public int getRateLimitBudget() {
+        return rateLimiter.getRemaining();
+    }
+
+    /**
+     * Set the dispatcher that handles inbound signals. Signals are keyed by
+     * their session ID, so a POOLED dispatcher handles the signals of each
+     * call strictly in order while different calls are handled in parallel.
+     * Signals must not be lost, so a dispatcher with threads must use the
+     * BLOCK overflow policy. The default handles signals inline on the socket
+     * thread.
+     *
+     * @param dispatcher The dispatcher to use, or null to handle signals inline
+     *
+     * @throws IllegalArgumentException if the dispatcher may drop signals
+     */
+    public void setSignalDispatcher(RespokeDispatcher dispatcher) {
+        checkSignalDispatcher(dispatcher);
+        signalDispatcher = (null != dispatcher) ? dispatcher : RespokeDispatcher.INLINE;
+    }
+
+    /**
+     * @param dispatcher A dispatcher for inbound signals, or null
+     *
+     * @throws IllegalArgumentException if the dispatcher may drop signals, i.e. offers, answers or ICE candidates
+     */
+    static void checkSignalDispatcher(RespokeDispatcher dispatcher) {
+        if ((null != dispatcher) && (RespokeDispatcher.Mode.INLINE != dispatcher.getMode())
+                && (RespokeDispatcher.OverflowPolicy.BLOCK != dispatcher.getOverflowPolicy())) {
+            throw new IllegalArgumentException("The signal dispatcher must use the BLOCK overflow policy");
+        }
+    }
+
+    /**
+     * @return The number of shards inbound signals are spread over, which is 0 when they are handled inline
+     */
+    public int getSignalShardCount() {
+        return signalDispatcher.getShardCount();
+    }
+
+    /**
+     * @param shard The index of the shard to inspect
+     *
+     * @return The number of inbound signals waiting to be handled by this shard
+     */
+    public int getSignalQueueDepth(int shard) {
+        return signalDispatcher.getShardQueueDepth(shard);
+    }
+
+    /**
+     * @param priority The priority class to inspect
+     *
+     * @return The number of REST requests of this priority waiting for their turn in the worker queue
+     */
+    public int getQueueDepth(RespokeWorkerThread.Priority priority) {
+        return workerThread.getQueueDepth(priority);
+    }
+
+    /**
+     * @param priority The priority class to inspect
+     *
+     * @return The average time REST requests of this priority waited in the worker queue, in milliseconds
+     */
+    public long getAverageQueueWait(RespokeWorkerThread.Priority priority) {
+        return workerThread.getAverageWaitMillis(priority);
+    }
+
+    /**
+     * @param metrics Receives the timings of the socket handshake and the registration of the connection
+     */
+    void setConnectMetrics(RespokeConnectMetrics metrics) {
+        connectMetrics = metrics;
+    }
+
+    /**
+     * Set the presence to send right behind the registration of the
+     * connection once the socket has connected, instead of after the
+     * registration has been acknowledged
+     *
+     * @param presenceData The body of the presence request
+     * @param completionListener The listener to notify when the presence has been set
+     */
+    void setInitialPresence(JSONObject presenceData, RESTListener completionListener) {
+        initialPresenceData = presenceData;
+        initialPresenceListener = completionListener;
+    }
+
+    /**
+     * @param dispatcher The dispatcher of the client, which delivers the
+     * failures of requests that are detected on the shared scheduler, i.e.
+     * timeouts, so that the listeners of the app never run on it
+     */
+    void setCompletionDispatcher(RespokeDispatcher dispatcher) {
+        completionDispatcher = (null != dispatcher) ? dispatcher : RespokeDispatcher.INLINE;
+    }
+
+    /**
+     * @param heldRequests The outbox in which to hold requests while the socket is not connected, or null to fail them
+     */
+    void setOutbox(RespokeOutbox heldRequests) {
+        outbox = heldRequests;
+    }
+
+    /**
+     * @return true if a request made now will be sent, either straight away or once the socket has reconnected
+     */
+    public boolean isAcceptingRequests() {
+        RespokeOutbox heldRequests = outbox;
+
+        return connected || ((null != heldRequests) && heldRequests.isAccepting());
+    }
+
+    /**
+     * Resolve the socket host and complete a TLS handshake with it in the
+     * background, so that the DNS cache and the TLS session cache are warm
+     * by the time the socket connects. This can run while the token requests
+     * are in flight. The socket.io handshake itself can not start before the
+     * app token is known, since the server authenticates it. The warm up runs
+     * on the shared scheduler, and is skipped while another one is running
+     * since that one warms the same caches.
+     *
+     * @param metrics Receives the time taken by the warm up, or null
+     */
+    static void warmUp(final RespokeConnectMetrics metrics) {
+        final SSLContext sslContext = Respoke.sharedInstance().getSSLContext();
+
+        if ((null == sslContext) || !warmUpInProgress.compareAndSet(false, true)) {
+            return;
+        }
+
+        Respoke.sharedInstance().getScheduler().execute(new Runnable() {
+            @Override
+            public void run() {
+                SSLSocket socket = null;
+
+                if (null != metrics) {
+                    metrics.stageStarted(RespokeConnectMetrics.Stage.WARM_UP);
+                }
+
+                try {
+                    InetAddress address = InetAddress.getByName(RESPOKE_SOCKETIO_HOST);
+                    socket = (SSLSocket) sslContext.getSocketFactory().createSocket();
+                    socket.setSoTimeout(WARM_UP_TIMEOUT);
+                    socket.connect(new InetSocketAddress(address, Integer.parseInt(RESPOKE_SOCKETIO_PORT)), WARM_UP_TIMEOUT);
+
+                    // Layer TLS over the connected socket by host name, so that the session is cached for that host
+                    socket = (SSLSocket) sslContext.getSocketFactory().createSocket(socket, RESPOKE_SOCKETIO_HOST, Integer.parseInt(RESPOKE_SOCKETIO_PORT), true);
+                    socket.startHandshake();
+
+                    if (null != metrics) {
+                        metrics.stageCompleted(RespokeConnectMetrics.Stage.WARM_UP);
+                    }
+                } catch (IOException e) {
+                    // The socket will just connect the slow way
+                    Log.debug(TAG + "Unable to warm up the socket: " + e.getMessage());
+                } finally {
+                    if (null != socket) {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // Nothing more to do
+                        }
+                    }
+
+                    warmUpInProgress.set(false);
+                }
+            }
+        });
+    }
+
     public void authenticate() {
-        String connectURL = "https://api.respoke.io/socket.io/1/";
+        String connectURL = "https://" + RESPOKE_SOCKETIO_HOST + "/socket.io/1/";
 
         Log.debug("Connecting socket "+connectURL);
         Emitter.Listener onError = new Emitter.Listener() {
             @Override
             public void call(Object... args) {
                     Log.debug(TAG + "Socket error" + args.toString());
+
+                    if (!connected && !connectErrorReported) {
+                        // Let the client decide whether to try again, i.e. with a new app token, rather than retrying with this one
+                        connectErrorReported = true;
+
+                        Listener listener = listenerReference.get();
+                        if (null != listener) {
+                            listener.onError("Unable to connect the socket", RespokeSignalingChannel.this);
+                        }
+                    }
             }
         };
         Socket socket;
         try {
             IO.Options opts = new IO.Options();
             opts.query = "__sails_io_sdk_version=0.10.0&app-token=" + appToken;
+            // Share the TLS session cache with the warm up and the other connections to the service
+            opts.sslContext = Respoke.sharedInstance().getSSLContext();
+
+            if (null != connectMetrics) {
+                connectMetrics.stageStarted(RespokeConnectMetrics.Stage.SOCKET);
+            }
 
             socket = IO.socket(connectURL, opts);
+            connectingSocket = socket;
             setHooks();
 
             socket.on(Socket.EVENT_CONNECT, new Emitter.Listener() {
@@ -269,6 +576,10 @@ public class RespokeSignalingChannel {
                 @Override
                 public void call(Object... args) {
                     Log.debug(TAG + "Socket connected to respoke");
+                    if (null != connectMetrics) {
+                        connectMetrics.stageCompleted(RespokeConnectMetrics.Stage.SOCKET);
+                    }
+
                     connected = true;
                     client = socket;
                     onConnect();
@@ -289,7 +600,12 @@ public class RespokeSignalingChannel {
                     client = null;
                     if (connected) {
                         connected = false;
-                        workerThread.cancelAllTasks();
+                        holdRequests(workerThread.cancelAllTasks());
+                        failRequests(requestWindow.clear(), "Can't complete request when not connected. Please reconnect!");
+
+                        for (Respoke.TaskCompletionListener eachListener : candidateCoalescer.clear()) {
+                            eachListener.onError("Can't complete request when not connected. Please reconnect!");
+                        }
 
                         Listener listener = listenerReference.get();
                         if (null != listener) {
@@ -319,70 +635,63 @@ public class RespokeSignalingChannel {
         Log.debug("Setting Hooks");
 
         onJoin = new Emitter.Listener() {
+            private final RespokeEventDecoder.Event event = new RespokeEventDecoder.Event();  ///< Reused for every frame, frames arrive one at a time
+
             @Override
             public void call(Object... args) {
                 for (int ii = 0; ii < args.length; ii++) {
-                    try {
-                        JSONObject eachEvent = (JSONObject) args[ii];
-                        String endpoint = eachEvent.getString("endpointId");
-                        String connection = eachEvent.getString("connectionId");
-                        JSONObject header = eachEvent.getJSONObject("header");
-                        String groupID = header.getString("channel");
-
+                    if (eventDecoder.decodeMembership(args[ii], event)) {
                         Listener listener = listenerReference.get();
                         if (null != listener) {
-                            listener.onJoinGroup(groupID, endpoint, connection, RespokeSignalingChannel.this);
+                            listener.onJoinGroup(event.groupID, event.endpointID, event.connectionID, RespokeSignalingChannel.this);
                         }
-                    } catch (JSONException e) {
+                    } else {
                         Log.debug(TAG + "Error parsing received event");
                     }
                 }
+
+                Listener listener = listenerReference.get();
+                if (null != listener) {
+                    listener.onEventBatchComplete(RespokeSignalingChannel.this);
+                }
             }
         };
         onLeave = new Emitter.Listener() {
+            private final RespokeEventDecoder.Event event = new RespokeEventDecoder.Event();  ///< Reused for every frame, frames arrive one at a time
+
             @Override
             public void call(Object... args) {
                 for (int ii = 0; ii < args.length; ii++) {
-                    try {
-                        JSONObject eachEvent = (JSONObject) args[ii];
-                        String endpoint = eachEvent.getString("endpointId");
-                        String connection = eachEvent.getString("connectionId");
-                        JSONObject header = eachEvent.getJSONObject("header");
-                        String groupID = header.getString("channel");
-
+                    if (eventDecoder.decodeMembership(args[ii], event)) {
                         Listener listener = listenerReference.get();
                         if (null != listener) {
-                            listener.onLeaveGroup(groupID, endpoint, connection, RespokeSignalingChannel.this);
+                            listener.onLeaveGroup(event.groupID, event.endpointID, event.connectionID, RespokeSignalingChannel.this);
                         }
-                    } catch (JSONException e) {
+                    } else {
                         Log.debug(TAG + "Error parsing received event");
                     }
                 }
+
+                Listener listener = listenerReference.get();
+                if (null != listener) {
+                    listener.onEventBatchComplete(RespokeSignalingChannel.this);
+                }
             }
         };
         onMessage = new Emitter.Listener() {
+            private final RespokeEventDecoder.Event event = new RespokeEventDecoder.Event();  ///< Reused for every frame, frames arrive one at a time
+
             @Override
             public void call(Object... args) {
                 for (int ii = 0; ii < args.length; ii++) {
-                    try {
-                        JSONObject eachEvent = (JSONObject) args[ii];
-                        String message = eachEvent.getString("body");
-                        JSONObject header = eachEvent.getJSONObject("header");
-                        String endpoint = header.getString("from");
-                        Date messageDate;
-
-                        if (!header.isNull("timestamp")) {
-                            messageDate = new Date(header.getLong("timestamp"));
-                        } else {
-                            // Just use the current time if no date is specified in the header data
-                            messageDate = new Date();
-                        }
-
+                    if (eventDecoder.decodeMessage(args[ii], event)) {
                         Listener listener = listenerReference.get();
                         if (null != listener) {
-                            listener.onMessage(message, messageDate, endpoint, RespokeSignalingChannel.this);
+                            // Just use the current time if no date is specified in the header data
+                            Date messageDate = (0 != event.timestamp) ? new Date(event.timestamp) : new Date();
+                            listener.onMessage(event.body, messageDate, event.endpointID, RespokeSignalingChannel.this);
                         }
-                    } catch (JSONException e) {
+                    } else {
                         Log.debug(TAG + "Error parsing received event");
                     }
                 }
@@ -394,7 +703,7 @@ public class RespokeSignalingChannel {
                 for (int ii = 0; ii < args.length; ii++) {
                     try {
                         JSONObject eachEvent = (JSONObject) args[ii];
-                        routeSignal(eachEvent);
+                        dispatchSignal(eachEvent);
                     } catch (JSONException e) {
                         Log.debug(TAG + "Error parsing received event");
                     }
@@ -402,53 +711,44 @@ public class RespokeSignalingChannel {
             }
         };
         onPubsub = new Emitter.Listener() {
+            private final RespokeEventDecoder.Event event = new RespokeEventDecoder.Event();  ///< Reused for every frame, frames arrive one at a time
+
             @Override
             public void call(Object... args) {
                 for (int ii = 0; ii < args.length; ii++) {
-                    try {
-                        JSONObject eachEvent = (JSONObject) args[ii];
-                        String message = eachEvent.getString("message");
-                        JSONObject header = eachEvent.getJSONObject("header");
-                        String endpointID = header.getString("from");
-                        String groupID = header.getString("channel");
-                        Date messageDate;
-
-                        if (!header.isNull("timestamp")) {
-                            messageDate = new Date(header.getLong("timestamp"));
-                        } else {
-                            // Just use the current time if no date is specified in the header data
-                            messageDate = new Date();
-                        }
-
+                    if (eventDecoder.decodePubsub(args[ii], event)) {
                         Listener listener = listenerReference.get();
                         if (null != listener) {
-                            listener.onGroupMessage(message, groupID, endpointID, RespokeSignalingChannel.this, messageDate);
+                            // Just use the current time if no date is specified in the header data
+                            Date messageDate = (0 != event.timestamp) ? new Date(event.timestamp) : new Date();
+                            listener.onGroupMessage(event.body, event.groupID, event.endpointID, RespokeSignalingChannel.this, messageDate);
                         }
-                    } catch (JSONException e) {
+                    } else {
                         Log.debug(TAG + "Error parsing received event");
                     }
                 }
             }
         };
         onPresence = new Emitter.Listener() {
+            private final RespokeEventDecoder.Event event = new RespokeEventDecoder.Event();  ///< Reused for every frame, frames arrive one at a time
+
             @Override
             public void call(Object... args) {
                 for (int ii = 0; ii < args.length; ii++) {
-                    try {
-                        JSONObject eachEvent = (JSONObject) args[ii];
-                        Object type = eachEvent.getString("type");
-                        JSONObject header = eachEvent.getJSONObject("header");
-                        String endpointID = header.getString("from");
-                        String connectionID = header.getString("fromConnection");
-
+                    if (eventDecoder.decodePresence(args[ii], event)) {
                         Listener listener = listenerReference.get();
                         if (null != listener) {
-                            listener.onPresence(type, connectionID, endpointID, RespokeSignalingChannel.this);
+                            listener.onPresence(event.presence, event.connectionID, event.endpointID, RespokeSignalingChannel.this);
                         }
-                    } catch (JSONException e) {
+                    } else {
                         Log.debug(TAG + "Error parsing received event");
                     }
                 }
+
+                Listener listener = listenerReference.get();
+                if (null != listener) {
+                    listener.onEventBatchComplete(RespokeSignalingChannel.this);
+                }
             }
         };
 
@@ -475,11 +775,14 @@ public class RespokeSignalingChannel {
         }
 
         // Once the socket is connected, perform a post to get the connection and endpoint IDs for this client
-        sendRESTMessage(
-                "post", "/v1/connections", data, new RESTListener() {
+        RESTListener registrationListener = new RESTListener() {
                     @Override
                     public void onSuccess(Object response
                     ) {
+                        if (null != connectMetrics) {
+                            connectMetrics.stageCompleted(RespokeConnectMetrics.Stage.REGISTRATION);
+                        }
+
                         Listener listener = listenerReference.get();
                         if (null != listener) {
                             if (response instanceof JSONObject) {
@@ -515,14 +818,84 @@ public class RespokeSignalingChannel {
                         }
                     }
 
-                });
+                };
+
+        sendRegistration(data, registrationListener);
+    }
+
+    /**
+     * Send the registration of the connection, followed straight away by the
+     * initial presence if there is one. The presence does not wait for the
+     * registration to be acknowledged, nor for room in the request window,
+     * which saves a round trip on the way to being connected.
+     *
+     * @param data The body of the registration request, or null
+     * @param registrationListener The listener to notify when the connection has been registered
+     */
+    private void sendRegistration(JSONObject data, RESTListener registrationListener) {
+        final RespokeEnvelopeEncoder.Envelope registration;
+        RespokeEnvelopeEncoder.Envelope presence = null;
+        final RESTListener presenceListener = initialPresenceListener;
+
+        try {
+            registration = envelopeEncoder.encode(appToken, "/v1/connections", data);
+
+            if (null != initialPresenceData) {
+                presence = envelopeEncoder.encode(appToken, "/v1/presence", initialPresenceData);
+            }
+        } catch (JSONException e) {
+            registrationListener.onError("Unable to JSON encode message");
+            return;
+        }
+
+        final OutgoingRequest registrationRequest = new OutgoingRequest("post", "/v1/connections", data, RespokeWorkerThread.Priority.CONTROL, null, 0, false, registration, registrationListener);
+        final RespokeEnvelopeEncoder.Envelope finalPresence = presence;
+
+        workerThread.postTaskDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (null != connectMetrics) {
+                    connectMetrics.stageStarted(RespokeConnectMetrics.Stage.REGISTRATION);
+                }
+
+                emitRequest(registrationRequest);
+
+                if (null != finalPresence) {
+                    if (null != connectMetrics) {
+                        connectMetrics.stageStarted(RespokeConnectMetrics.Stage.PRESENCE);
+                    }
+
+                    emitRequest(new OutgoingRequest("post", "/v1/presence", initialPresenceData, RespokeWorkerThread.Priority.PRESENCE, null, 0, false, finalPresence, new RESTListener() {
+                        @Override
+                        public void onSuccess(Object response) {
+                            if (null != connectMetrics) {
+                                connectMetrics.stageCompleted(RespokeConnectMetrics.Stage.PRESENCE);
+                            }
+
+                            if (null != presenceListener) {
+                                presenceListener.onSuccess(response);
+                            }
+                        }
+
+                        @Override
+                        public void onError(String errorMessage) {
+                            if (null != presenceListener) {
+                                presenceListener.onError(errorMessage);
+                            }
+                        }
+                    }));
+                }
+            }
+        }, 0, RespokeWorkerThread.Priority.CONTROL);
     }
 
     public void disconnect() {
-        workerThread.cancelAllTasks();
+        holdRequests(workerThread.cancelAllTasks());
 
         if (null != client) {
             client.disconnect();
+        } else if (null != connectingSocket) {
+            connectingSocket.disconnect();
         }
     }
 
@@ -533,7 +906,8 @@ public class RespokeSignalingChannel {
             try {
                 data.put("endpointList", new JSONArray(endpointList));
 
-                sendRESTMessage("post", "/v1/presenceobservers", data, new RESTListener() {
+                // Not held while disconnected, the client registers its presence observers again on every connection
+                sendRESTMessage("post", "/v1/presenceobservers", data, RespokeWorkerThread.Priority.PRESENCE, null, 0, false, new RESTListener() {
                     @Override
                     public void onSuccess(Object response) {
                         JSONArray responseArray = null;
@@ -570,156 +944,341 @@ public class RespokeSignalingChannel {
         }
     }
 
-    public void sendRESTMessage(String httpMethod, String url, JSONObject data, final RESTListener completionListener) {
+    /**
+     * Stop receiving presence updates for the specified endpoints
+     *
+     * @param endpointList The IDs of the endpoints
+     * @param completionListener The listener to notify when the request has completed
+     */
+    public void unregisterPresence(ArrayList<String> endpointList, final RESTListener completionListener) {
         if (connected) {
-            JSONArray array = new JSONArray();
+            JSONObject data = new JSONObject();
 
             try {
-                JSONObject message = new JSONObject("{'headers':{'App-Token':'" + appToken + "'},'url':'" + url + "'}");
+                data.put("endpointList", new JSONArray(endpointList));
 
-                if (null != data) {
-                    message.put("data", data);
-                }
+                sendRESTMessage("delete", "/v1/presenceobservers", data, RespokeWorkerThread.Priority.PRESENCE, null, 0, false, completionListener);
+            } catch (JSONException e) {
+                completionListener.onError("Unable to JSON encode message");
+            }
+        } else {
+            completionListener.onError("Can't complete request when not connected. Please reconnect!");
+        }
+    }
+
+    public void sendRESTMessage(String httpMethod, String url, JSONObject data, final RESTListener completionListener) {
+        sendRESTMessage(httpMethod, url, data, RespokeWorkerThread.Priority.CONTROL, completionListener);
+    }
+
+    /**
+     * Send a REST request to the Respoke service over the socket. Requests of
+     * a higher priority overtake queued requests of a lower priority.
+     * Requests other than signaling that are made while the socket is
+     * reconnecting are held in the outbox, if there is one, and sent once
+     * it has reconnected.
+     *
+     * @param httpMethod The HTTP method to use
+     * @param url The url of the REST resource
+     * @param data The body of the request, or null
+     * @param priority The priority class of the request
+     * @param completionListener The listener to notify when the request has completed
+     */
+    public void sendRESTMessage(String httpMethod, String url, JSONObject data, RespokeWorkerThread.Priority priority, final RESTListener completionListener) {
+        sendRESTMessage(httpMethod, url, data, priority, null, 0, completionListener);
+    }
 
-                array.put(message);
+    /**
+     * Send a REST request to the Respoke service over the socket, with the
+     * terms under which it may be held in the outbox while the socket is
+     * reconnecting.
+     *
+     * @param httpMethod The HTTP method to use
+     * @param url The url of the REST resource
+     * @param data The body of the request, or null
+     * @param priority The priority class of the request
+     * @param dedupKey A key with which a later request replaces this one while they are held, or null
+     * @param ttlMillis How long the request may be held, in milliseconds, or 0 for the default of the outbox
+     * @param completionListener The listener to notify when the request has completed
+     */
+    public void sendRESTMessage(String httpMethod, String url, JSONObject data, RespokeWorkerThread.Priority priority, String dedupKey, long ttlMillis, final RESTListener completionListener) {
+        // Signaling belongs to the calls of the connection that was lost, so it is never held
+        sendRESTMessage(httpMethod, url, data, priority, dedupKey, ttlMillis, RespokeWorkerThread.Priority.SIGNALING != priority, completionListener);
+    }
+
+    private void sendRESTMessage(String httpMethod, String url, JSONObject data, RespokeWorkerThread.Priority priority, String dedupKey, long ttlMillis, boolean replayable, final RESTListener completionListener) {
+        if (connected) {
+            try {
+                // Encoded once, the same envelope is checked against the size limit and emitted on the socket
+                RespokeEnvelopeEncoder.Envelope envelope = envelopeEncoder.encode(appToken, url, data);
 
-                if (array.toString().getBytes("UTF-8").length <= APITransaction.bodySizeLimit) {
-                    sendEvent(httpMethod, array, 1, completionListener, 0);
+                if (envelope.utf8Length <= APITransaction.bodySizeLimit) {
+                    sendEvent(new OutgoingRequest(httpMethod, url, data, priority, dedupKey, ttlMillis, replayable, envelope, completionListener), 0);
                 } else {
                     completionListener.onError("Request body is too big");
                 }
             } catch (JSONException e) {
                 completionListener.onError("Unable to JSON encode message");
-            } catch (UnsupportedEncodingException e) {
-                completionListener.onError("Unable to encode message");
             }
         } else {
-            completionListener.onError("Can't complete request when not connected. Please reconnect!");
+            RespokeOutbox heldRequests = outbox;
+
+            if (!replayable || (null == heldRequests) || !heldRequests.add(httpMethod, url, data, priority, dedupKey, ttlMillis, completionListener)) {
+                completionListener.onError("Can't complete request when not connected. Please reconnect!");
+            }
         }
     }
 
-    private void sendEvent(final String httpMethod, final JSONArray array, final Integer attempt, final RESTListener completionListener, long delayMillis) {
-        // Queue the request with the socket workerThread
-        workerThread.postTaskDelayed(new Runnable() {
+    /**
+     * Hold the requests that were still waiting to be sent when the socket
+     * disconnected in the outbox, and fail the ones that may not be held.
+     * Requests already sent are not held, since the server may have acted
+     * on them.
+     *
+     * @param cancelledTasks The cancelled tasks of the worker, in the order they were posted
+     */
+    private void holdRequests(ArrayList<RespokeWorkerThread.Task> cancelledTasks) {
+        RespokeOutbox heldRequests = outbox;
+
+        for (RespokeWorkerThread.Task eachTask : cancelledTasks) {
+            if (eachTask.errand instanceof OutgoingRequest) {
+                OutgoingRequest request = (OutgoingRequest) eachTask.errand;
+
+                if (!request.replayable || (null == heldRequests) || !heldRequests.add(request.httpMethod, request.url, request.data, request.priority, request.dedupKey, request.ttlMillis, request.listener)) {
+                    request.listener.onError("Can't complete request when not connected. Please reconnect!");
+                }
+            }
+        }
+    }
+
+    private void sendEvent(OutgoingRequest request, long delayMillis) {
+        // Queue the request with the socket workerThread. The worker only runs it once the request window and the rate limiter have room for it
+        workerThread.postTaskDelayed(request, delayMillis, request.priority);
+    }
+
+    /**
+     * Emit a request on the socket. Called on the worker thread.
+     */
+    private void emitRequest(final OutgoingRequest outgoing) {
+        Socket socket = client;
+
+        if (connected && (null != socket)) {
+            outgoing.reservation = rateLimiter.reserve();
+            final RespokeRequestWindow.PendingRequest request = requestWindow.open(outgoing.listener);
+            socket.emit(outgoing.httpMethod, outgoing.envelope, new Ack() {
+
+                @Override
+                public void call(Object... os) {
+                    if (requestWindow.close(request)) {
+                        workerThread.wake();
+                        handleAck(outgoing, os);
+                    } else {
+                        Log.debug(TAG + "Ignoring late response to request " + request.requestID);
+                    }
+                }
+
+            });
+        } else {
+            // Runs on the shared scheduler, which must not run application code
+            postError(outgoing.listener, "Can't complete request when not connected. Please reconnect!");
+        }
+    }
+
+    /**
+     * Decide whether the worker may send the next request yet. This is to
+     * avoid more socket requests from occurring simultaneously than the window
+     * allows, since too many causes instability in the socket.io library, and
+     * to pace the requests so that they stay within the rate limit of the
+     * server. Requests that have been waiting for their acknowledgement for
+     * longer than the task timeout are failed to make room.
+     *
+     * @return 0 if the next request may be sent now, otherwise how long to wait, in milliseconds
+     */
+    private long requestAdmissionDelay() {
+        if (!connected) {
+            // Let the queued requests run, so that they fail straight away
+            return 0;
+        }
+
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(REST_TASK_TIMEOUT);
+
+        if (!requestWindow.hasRoom()) {
+            long expiryMillis = requestWindow.millisUntilExpiry(timeoutMillis);
+
+            if (expiryMillis > 0) {
+                // Acknowledgements wake the worker up earlier
+                return expiryMillis;
+            }
+
+            failRequests(requestWindow.expire(timeoutMillis), "Timed out waiting for a response from the server");
+
+            if (!requestWindow.hasRoom()) {
+                return 1;
+            }
+        }
+
+        return rateLimiter.millisUntilToken();
+    }
+
+    /**
+     * Fail requests that were sent but not acknowledged. This may run on the
+     * shared scheduler, so the listeners are notified through the completion
+     * dispatcher.
+     */
+    private void failRequests(ArrayList<RespokeRequestWindow.PendingRequest> requests, String errorMessage) {
+        for (RespokeRequestWindow.PendingRequest eachRequest : requests) {
+            Log.debug(TAG + "Failing request " + eachRequest.requestID + ": " + errorMessage);
+            postError(eachRequest.listener, errorMessage);
+        }
+    }
+
+    private void postError(final RESTListener listener, final String errorMessage) {
+        completionDispatcher.dispatchDeferred(this, new Runnable() {
             @Override
             public void run() {
-                if (connected) {
-                    final CountDownLatch asyncTaskSignal = new CountDownLatch(1);
-                    client.emit(httpMethod, array, new Ack() {
+                listener.onError(errorMessage);
+            }
+        });
+    }
 
-                        @Override
-                        public void call(Object... os) {
-                            JSONArray arguments = new JSONArray(os);
-                            // There should only ever be one element in this array. Anything else is ignored for the time being.
-                            if ((arguments != null) && (arguments.length() > 0)) {
-                                try {
-                                    Object responseObject = arguments.get(0);
-                                    JSONObject jsonResponse = null;
-                                    Object responseBody = null;
-                                    String errorMessage = null;
-                                    boolean rateLimitErrorPresent = false;
-                                    Integer rateLimitDelay = 1000; // 1 second unless specified otherwise
-
-                                    if (responseObject instanceof JSONObject) {
-                                        jsonResponse = (JSONObject) responseObject;
-                                    } else {
-                                        errorMessage = "Unexpected response received";
-                                    }
+    private void handleAck(OutgoingRequest request, Object... os) {
+        RESTListener completionListener = request.listener;
+        JSONArray arguments = new JSONArray(os);
+        // There should only ever be one element in this array. Anything else is ignored for the time being.
+        if ((arguments != null) && (arguments.length() > 0)) {
+            try {
+                Object responseObject = arguments.get(0);
+                JSONObject jsonResponse = null;
+                Object responseBody = null;
+                String errorMessage = null;
+                boolean rateLimitErrorPresent = false;
+                Integer rateLimitDelay = 1000; // 1 second unless specified otherwise
+
+                if (responseObject instanceof JSONObject) {
+                    jsonResponse = (JSONObject) responseObject;
+                } else {
+                    errorMessage = "Unexpected response received";
+                }
 
-                                    // If the response contained json, parse it for error messages
-                                    if (null != jsonResponse) {
-                                        try {
-                                            int statusCode = jsonResponse.getInt("statusCode");
-                                            int[] validCodes = {200, 204, 205, 302, 401, 403, 404, 418, 429};
-                                            if (Arrays.binarySearch(validCodes, statusCode) < 0) {
-                                                errorMessage = "An unknown error occurred";
-                                            } else if (429 == statusCode) {
-                                                // The request was rejected due to a rate limit error
-                                                rateLimitErrorPresent = true;
-
-                                                // If there was a rate limit error, extract the limit info from the headers
-                                                try {
-                                                    JSONObject headers = jsonResponse.getJSONObject("headers");
-                                                    Integer limit = headers.getInt("RateLimit-Limit");
-                                                    rateLimitDelay = 1000 / limit;
-                                                } catch (JSONException e) {
-                                                    // If the limit info could not be found, use the default
-                                                }
-                                            }
-                                        } catch (JSONException e) {
-                                            // If the limit info could not be found, use the default
-                                        }
+                // If the response contained json, parse it for error messages
+                if (null != jsonResponse) {
+                    // Learn the rate limit from the headers so that later requests are paced before they are sent
+                    JSONObject headers = jsonResponse.optJSONObject("headers");
+                    if (null != headers) {
+                        int limit = headers.optInt("RateLimit-Limit", 0);
 
-                                        responseBody = jsonResponse.get("body");
+                        if (limit > 0) {
+                            rateLimiter.setLimit(limit);
+                            rateLimitDelay = 1000 / limit;
 
-                                        if (responseBody instanceof String) {
-                                            String responseString = (String) responseBody;
+                            if (headers.has("RateLimit-Remaining")) {
+                                rateLimiter.setRemaining(headers.optInt("RateLimit-Remaining", limit), request.reservation);
+                            }
+                        }
+                    }
 
-                                            if (responseString.equals("null")) {
-                                                responseBody = null;
-                                            } else {
-                                                try {
-                                                    responseBody = new JSONObject(responseString);
-                                                } catch (JSONException e) {
-                                                    // It's not a jsonobject. Pass the data to the calling object as is
-                                                }
-                                            }
-                                        }
+                    try {
+                        int statusCode = jsonResponse.getInt("statusCode");
+                        int[] validCodes = {200, 204, 205, 302, 401, 403, 404, 418, 429};
+                        if (Arrays.binarySearch(validCodes, statusCode) < 0) {
+                            errorMessage = "An unknown error occurred";
+                        } else if (429 == statusCode) {
+                            // The request was rejected due to a rate limit error
+                            rateLimitErrorPresent = true;
+                            rateLimiter.rateLimited();
+                        }
+                    } catch (JSONException e) {
+                        // If the status code could not be found, assume success
+                    }
 
-                                        if (responseBody instanceof JSONObject) {
-                                                    // The body of the response was decoded into JSON. Look for error messages
-                                            // If there was a server error, there will be a key named 'error' or 'status'
-                                            try {
-                                                errorMessage = ((JSONObject) responseBody).getString("error");
-                                                String details = ((JSONObject) responseBody).getString("details");
-                                                errorMessage = errorMessage + " (" + details + ")";
-                                            } catch (JSONException e) {
-                                                // If there was no 'error' key, then assume the operation was successful
-                                            }
-                                        }
-                                    }
+                    responseBody = jsonResponse.get("body");
 
-                                    if (rateLimitErrorPresent) {
-                                        if (attempt < 3) {
-                                            Log.debug(TAG + "Performing rate-limited retry " + attempt + 1);
-                                            sendEvent(httpMethod, array, attempt + 1, completionListener, rateLimitDelay);
-                                        } else {
-                                            completionListener.onError("API rate limit was exceeded");
-                                        }
-                                    } else {
-                                        if (null == errorMessage) {
-                                            completionListener.onSuccess(responseBody);
-                                        } else {
-                                            completionListener.onError(errorMessage);
-                                        }
-                                    }
-                                } catch (JSONException e) {
-                                    completionListener.onError("Unexpected response from server");
-                                }
-                            } else {
-                                completionListener.onError("Unexpected response from server");
+                    if (responseBody instanceof String) {
+                        String responseString = (String) responseBody;
+
+                        if (responseString.equals("null")) {
+                            responseBody = null;
+                        } else {
+                            try {
+                                responseBody = new JSONObject(responseString);
+                            } catch (JSONException e) {
+                                // It's not a jsonobject. Pass the data to the calling object as is
                             }
+                        }
+                    }
 
-                            // Signal that processing is complete and the next task in the worker thread may proceed
-                            asyncTaskSignal.countDown();
+                    if (responseBody instanceof JSONObject) {
+                        // The body of the response was decoded into JSON. Look for error messages
+                        // If there was a server error, there will be a key named 'error' or 'status'
+                        try {
+                            errorMessage = ((JSONObject) responseBody).getString("error");
+                            String details = ((JSONObject) responseBody).getString("details");
+                            errorMessage = errorMessage + " (" + details + ")";
+                        } catch (JSONException e) {
+                            // If there was no 'error' key, then assume the operation was successful
                         }
+                    }
+                }
 
-                    });
+                if (rateLimitErrorPresent) {
+                    if (request.attempt < 3) {
+                        request.attempt++;
+                        Log.debug(TAG + "Performing rate-limited retry " + request.attempt);
 
-                    try {
-                        // Wait for the previous task to complete before moving to the next item in the worker thread queue. This is to avoid multiple socket requests from occurring simultaneously which causes instability in the socket.io library
-                        asyncTaskSignal.await(REST_TASK_TIMEOUT, TimeUnit.SECONDS);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
+                        // Once the limit is known the rate limiter paces the retry, otherwise fall back to a fixed delay
+                        long retryDelay = (rateLimiter.getLimit() > 0) ? 0 : rateLimitDelay;
+                        sendEvent(request, retryDelay);
+                    } else {
+                        completionListener.onError("API rate limit was exceeded");
                     }
                 } else {
-                    completionListener.onError("Can't complete request when not connected. Please reconnect!");
+                    if (null == errorMessage) {
+                        completionListener.onSuccess(responseBody);
+                    } else {
+                        completionListener.onError(errorMessage);
+                    }
                 }
+            } catch (JSONException e) {
+                completionListener.onError("Unexpected response from server");
             }
-        }, delayMillis);
+        } else {
+            completionListener.onError("Unexpected response from server");
+        }
+    }
+
+    /**
+     * Set how long outgoing ICE candidates of a session are gathered before
+     * they are sent as a single iceCandidates signal. The candidates are sent
+     * early at the end of the candidates, and before any other signal of the
+     * same session. Batching is off by default.
+     *
+     * @param windowMillis The window in milliseconds, or 0 to send every signal straight away
+     */
+    public void setCandidateBatchWindow(long windowMillis) {
+        candidateCoalescer.setWindow(windowMillis);
+    }
+
+    public long getCandidateBatchWindow() {
+        return candidateCoalescer.getWindowMillis();
     }
 
     public void sendSignal(JSONObject message, String toEndpointID, final Respoke.TaskCompletionListener completionListener) {
+        String sessionID = message.optString("sessionId", null);
+
+        if ("iceCandidates".equals(message.optString("signalType"))) {
+            if (candidateCoalescer.add(sessionID, toEndpointID, message, completionListener)) {
+                return;
+            }
+        } else if (null != sessionID) {
+            // Candidates that are still being gathered must reach the other side before this signal
+            candidateCoalescer.flush(sessionID);
+        }
+
+        ArrayList<Respoke.TaskCompletionListener> completionListeners = new ArrayList<Respoke.TaskCompletionListener>(1);
+        completionListeners.add(completionListener);
+        postSignal(message, toEndpointID, completionListeners);
+    }
+
+    private void postSignal(JSONObject message, String toEndpointID, final ArrayList<Respoke.TaskCompletionListener> completionListeners) {
         JSONObject data = new JSONObject();
 
         try {
@@ -727,20 +1286,48 @@ public class RespokeSignalingChannel {
             data.put("signal", message.toString());
             data.put("toType", "web");
 
-            sendRESTMessage("post", "/v1/signaling", data, new RESTListener() {
+            sendRESTMessage("post", "/v1/signaling", data, RespokeWorkerThread.Priority.SIGNALING, new RESTListener() {
                 @Override
                 public void onSuccess(Object response) {
-                    completionListener.onSuccess();
+                    for (Respoke.TaskCompletionListener eachListener : completionListeners) {
+                        eachListener.onSuccess();
+                    }
                 }
 
                 @Override
                 public void onError(String errorMessage) {
-                    completionListener.onError(errorMessage);
+                    for (Respoke.TaskCompletionListener eachListener : completionListeners) {
+                        eachListener.onError(errorMessage);
+                    }
                 }
             });
         } catch (JSONException e) {
-            completionListener.onError("Error encoding signal to json");
+            for (Respoke.TaskCompletionListener eachListener : completionListeners) {
+                eachListener.onError("Error encoding signal to json");
+            }
+        }
+    }
+
+    /**
+     * Hand an inbound signal to the signal dispatcher, keyed by its session so
+     * that the signals of one call are handled in the order they arrived
+     */
+    private void dispatchSignal(final JSONObject message) {
+        JSONObject signal = message.optJSONObject("body");
+        String sessionID = (null != signal) ? signal.optString("sessionId", null) : null;
+
+        if (null == sessionID) {
+            // Not routable, so let routeSignal report the problem straight away
+            routeSignal(message);
+            return;
         }
+
+        signalDispatcher.dispatch(sessionID, new Runnable() {
+            @Override
+            public void run() {
+                routeSignal(message);
+            }
+        });
     }
 
     private void routeSignal(JSONObject message) {
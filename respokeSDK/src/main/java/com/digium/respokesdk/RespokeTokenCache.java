@@ -0,0 +1,228 @@
+/**
+ * Copyright 2015, Digium, Inc. All rights reserved.
+ *
+ * This source code is licensed under The MIT License found in the LICENSE file
+ * in the root directory of this source tree.
+ *
+ * For all details and documentation: https://www.respoke.io
+ */
+package com.digium.respokesdk;
+
+import com.phono.srtplight.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Remembers the app tokens obtained when connecting in development mode, so
+ * that connecting or reconnecting the same endpoint of the same app again
+ * skips the token and session-token requests while the app token is still
+ * valid. The tokens may optionally be kept in a file so that they survive a
+ * restart of the process. Such a file grants access to the app as the
+ * endpoint until the tokens expire, so it is only readable by its owner.
+ */
+public class RespokeTokenCache {
+
+    private static final String TAG = "RespokeTokenCache: ";
+    private static final long EXPIRY_MARGIN_MILLIS = 5 * 60 * 1000;  ///< Tokens this close to their expiry are no longer handed out
+
+    /**
+     * A cached app token
+     */
+    private static class Entry {
+
+        final String appToken;
+        final long expiresAt;  ///< When the token expires, in milliseconds since the epoch
+
+        Entry(String appToken, long expiresAt) {
+            this.appToken = appToken;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final HashMap<String, Entry> entries;  ///< The cached tokens, keyed by app ID and endpoint ID
+    private File persistenceFile;  ///< The file the tokens are kept in, or null to keep them in memory only
+    private boolean enabled;
+
+    RespokeTokenCache() {
+        entries = new HashMap<String, Entry>();
+        enabled = true;
+    }
+
+    /**
+     * @param shouldCache false to always fetch new tokens when connecting. Defaults to true
+     */
+    public synchronized void setEnabled(boolean shouldCache) {
+        enabled = shouldCache;
+
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Keep the cached tokens in a file, so that they survive a restart of the
+     * process. Tokens already in the file that have not expired are loaded.
+     *
+     * @param file The file to use, or null to keep the tokens in memory only
+     */
+    public synchronized void setPersistenceFile(File file) {
+        persistenceFile = file;
+
+        if ((null != file) && file.isFile()) {
+            Properties properties = new Properties();
+            InputStream in = null;
+
+            try {
+                in = new FileInputStream(file);
+                properties.load(in);
+
+                for (String eachKey : properties.stringPropertyNames()) {
+                    String value = properties.getProperty(eachKey);
+                    int separator = value.lastIndexOf('|');
+
+                    if (separator > 0) {
+                        try {
+                            long expiresAt = Long.parseLong(value.substring(separator + 1));
+                            entries.put(eachKey, new Entry(value.substring(0, separator), expiresAt));
+                        } catch (NumberFormatException e) {
+                            // Skip the damaged entry
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.error(TAG + "Unable to load tokens: " + e.getMessage());
+            } finally {
+                if (null != in) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // Nothing more to do
+                    }
+                }
+            }
+
+            removeExpired();
+        }
+    }
+
+    /**
+     * @param appID The app ID
+     * @param endpointID The endpoint ID
+     *
+     * @return A cached app token that is still valid, or null if there is none
+     */
+    public synchronized String get(String appID, String endpointID) {
+        if (!enabled) {
+            return null;
+        }
+
+        Entry entry = entries.get(key(appID, endpointID));
+
+        if ((null != entry) && (entry.expiresAt - EXPIRY_MARGIN_MILLIS > System.currentTimeMillis())) {
+            return entry.appToken;
+        }
+
+        return null;
+    }
+
+    /**
+     * Remember an app token
+     *
+     * @param appID The app ID
+     * @param endpointID The endpoint ID
+     * @param appToken The app token
+     * @param ttlSeconds How long the token is valid, in seconds
+     */
+    public synchronized void put(String appID, String endpointID, String appToken, long ttlSeconds) {
+        if (enabled && (null != appToken)) {
+            entries.put(key(appID, endpointID), new Entry(appToken, System.currentTimeMillis() + ttlSeconds * 1000));
+            removeExpired();
+            save();
+        }
+    }
+
+    /**
+     * Forget the app token of an endpoint, i.e. because the server rejected it
+     *
+     * @param appID The app ID
+     * @param endpointID The endpoint ID
+     */
+    public synchronized void invalidate(String appID, String endpointID) {
+        if (null != entries.remove(key(appID, endpointID))) {
+            save();
+        }
+    }
+
+    /**
+     * Forget every cached app token
+     */
+    public synchronized void clear() {
+        entries.clear();
+        save();
+    }
+
+    private static String key(String appID, String endpointID) {
+        return appID + "|" + endpointID;
+    }
+
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> iterator = entries.values().iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next().expiresAt <= now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void save() {
+        if (null == persistenceFile) {
+            return;
+        }
+
+        Properties properties = new Properties();
+
+        for (Map.Entry<String, Entry> eachEntry : entries.entrySet()) {
+            properties.setProperty(eachEntry.getKey(), eachEntry.getValue().appToken + "|" + eachEntry.getValue().expiresAt);
+        }
+
+        OutputStream out = null;
+
+        try {
+            if (!persistenceFile.exists() && persistenceFile.createNewFile()) {
+                // Restrict the file to its owner before any token is written to it
+                persistenceFile.setReadable(false, false);
+                persistenceFile.setWritable(false, false);
+                persistenceFile.setReadable(true, true);
+                persistenceFile.setWritable(true, true);
+            }
+
+            out = new FileOutputStream(persistenceFile);
+            properties.store(out, "Respoke app tokens");
+        } catch (IOException e) {
+            Log.error(TAG + "Unable to save tokens: " + e.getMessage());
+        } finally {
+            if (null != out) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Nothing more to do
+                }
+            }
+        }
+    }
+}
@@ -10,49 +10,398 @@
 
 package com.digium.respokesdk;
 
+import com.phono.srtplight.Log;
+
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Hashtable;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
- * Implements a worker thread for queueing and processing socket transactions with the Respoke service
+ * Implements a worker queue for queueing and processing socket transactions with the Respoke service.
+ * Tasks that are ready to run wait in one lane per priority, and the worker always runs the oldest task
+ * of the highest priority lane first. Every task that has not finished yet is tracked in a concurrent
+ * registry, so that posting and cancelling tasks is safe from any thread and does not depend on how
+ * many tasks are outstanding.
+ *
+ * The worker does not own a thread. Its tasks run one at a time on the scheduler shared by all clients,
+ * so the number of threads does not grow with the number of clients. A task must therefore never block
+ * waiting for the network. Instead the worker asks its Admission whether the next task may run, and
+ * pauses until it is woken up or the admission delay has passed.
  */
-public class RespokeWorkerThread extends Timer {
+public class RespokeWorkerThread {
+
+    private static final String TAG = "RespokeWorkerThread: ";
+    private static final int MAX_TASKS_PER_TURN = 16;  ///< How many tasks may run before the shared thread is handed to other workers
+
+    private static final int IDLE = 0;     ///< No tasks are being run
+    private static final int RUNNING = 1;  ///< A drain of the lanes is scheduled or in progress
+    private static final int PAUSED = 2;  ///< The admission is holding back the next task
 
-    HashMap <TimerTask,TimerTask> tasks ;
-    RespokeWorkerThread(String name) {
-        super(name);
-        tasks = new HashMap();
+    /**
+     * Decides whether the next task may run yet
+     */
+    interface Admission {
+
+        /**
+         * @return 0 if the next task may run now, otherwise how long to wait before asking again, in milliseconds
+         */
+        long admissionDelay();
     }
 
-    void prepareHandler() {
-        
+    /**
+     * The priority classes of the worker queue, highest first
+     */
+    public enum Priority {
+        SIGNALING, ///< Call signaling, i.e. offers, answers and ICE candidates
+        CONTROL,   ///< Connection and group management
+        PRESENCE,  ///< Presence updates and presence registration
+        BULK       ///< Endpoint and group messages
     }
 
-    void cancelAllTasks() {
-        for (TimerTask t:tasks.keySet()){
-            t.cancel();
+    /**
+     * A task that has been posted to the worker. It may be cancelled until it starts running. The state is kept in
+     * the task itself so that no other object needs to be allocated per task.
+     */
+    static final class Task extends AtomicInteger implements Runnable {
+
+        private static final long serialVersionUID = 1L;
+        private static final int SCHEDULED = 0;  ///< Waiting for its delay to pass
+        private static final int QUEUED = 1;     ///< Waiting in its lane for its turn
+        private static final int RUNNING = 2;
+        private static final int DONE = 3;
+        private static final int CANCELLED = 4;
+
+        private final RespokeWorkerThread worker;
+        final Runnable errand;
+        final Priority priority;
+        final long sequence;  ///< The order in which the task was posted
+        private volatile ScheduledFuture<?> future;
+        private long readyAt;
+
+        private Task(RespokeWorkerThread worker, Runnable errand, Priority priority) {
+            super(SCHEDULED);
+            this.worker = worker;
+            this.errand = errand;
+            this.priority = priority;
+            sequence = worker.nextSequence.getAndIncrement();
+        }
+
+        /**
+         * Called by the executor when the delay of the task has passed
+         */
+        @Override
+        public void run() {
+            if (compareAndSet(SCHEDULED, QUEUED)) {
+                worker.enqueue(this);
+                worker.scheduleDrain();
+            }
+        }
+
+        /**
+         * Cancel the task if it has not started running yet
+         *
+         * @return true if the task was cancelled, false if it has already run or is running
+         */
+        boolean cancel() {
+            while (true) {
+                int state = get();
+
+                if ((state != SCHEDULED) && (state != QUEUED)) {
+                    return false;
+                }
+
+                if (compareAndSet(state, CANCELLED)) {
+                    worker.tasks.remove(this);
+
+                    if (state == QUEUED) {
+                        // The task is skipped when its turn comes, so it no longer counts towards the lane depth
+                        worker.depth[priority.ordinal()].decrementAndGet();
+                    } else if (null != future) {
+                        future.cancel(false);
+                    }
+
+                    return true;
+                }
+            }
+        }
+
+        boolean isCancelled() {
+            return get() == CANCELLED;
         }
-        tasks.clear();
     }
 
-    void postTaskDelayed(final Runnable errand, long delayMillis) {
-        TimerTask t = new TimerTask(){
+    private final ScheduledExecutorService executor;
+    private final AtomicInteger drainState;
+    private volatile Admission admission;
+    private final Set<Task> tasks;  ///< The tasks that have been posted and have not finished yet
+    private final ConcurrentLinkedQueue<Task>[] lanes;  ///< The ready tasks of each priority
+    private final AtomicInteger[] depth;  ///< The number of tasks of each priority that are waiting in their lane
+    private final AtomicLong[] totalWaitMillis;  ///< The time the tasks of each priority have spent waiting in their lane
+    private final AtomicLong[] completedTasks;  ///< The number of tasks of each priority that have been run
+    private final Runnable drainer;
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    RespokeWorkerThread(ScheduledExecutorService scheduler) {
+        executor = scheduler;
+        drainState = new AtomicInteger(IDLE);
+        tasks = Collections.newSetFromMap(new ConcurrentHashMap<Task, Boolean>());
+        lanes = newLanes(Priority.values().length);
+        depth = new AtomicInteger[lanes.length];
+        totalWaitMillis = new AtomicLong[lanes.length];
+        completedTasks = new AtomicLong[lanes.length];
+
+        for (int ii = 0; ii < lanes.length; ii++) {
+            lanes[ii] = new ConcurrentLinkedQueue<Task>();
+            depth[ii] = new AtomicInteger();
+            totalWaitMillis[ii] = new AtomicLong();
+            completedTasks[ii] = new AtomicLong();
+        }
+
+        drainer = new Runnable() {
             @Override
             public void run() {
-                errand.run();
-                tasks.remove(this);
+                drain();
             }
         };
-        tasks.put(t, t);
-        this.schedule(t, delayMillis);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentLinkedQueue<Task>[] newLanes(int count) {
+        // Arrays of a generic type can only be created raw
+        return (ConcurrentLinkedQueue<Task>[]) new ConcurrentLinkedQueue<?>[count];
+    }
+
+    void setAdmission(Admission newAdmission) {
+        admission = newAdmission;
+    }
+
+    /**
+     * Let the worker know that the admission may now let the next task run, i.e. because a request has been
+     * acknowledged and made room in the request window
+     */
+    void wake() {
+        if (drainState.compareAndSet(PAUSED, RUNNING)) {
+            executor.execute(drainer);
+        }
+    }
+
+    void prepareHandler() {
+
+    }
+
+    /**
+     * Cancel every task that has not started running yet
+     *
+     * @return The cancelled tasks, in the order they were posted, so that the work they carried may be handed on
+     */
+    ArrayList<Task> cancelAllTasks() {
+        ArrayList<Task> cancelled = new ArrayList<Task>();
+
+        for (Task eachTask : tasks) {
+            if (eachTask.cancel()) {
+                cancelled.add(eachTask);
+            }
+        }
+
+        Collections.sort(cancelled, new Comparator<Task>() {
+            @Override
+            public int compare(Task lhs, Task rhs) {
+                return (lhs.sequence < rhs.sequence) ? -1 : ((lhs.sequence == rhs.sequence) ? 0 : 1);
+            }
+        });
+
+        return cancelled;
+    }
+
+    Task postTaskDelayed(final Runnable errand, long delayMillis) {
+        return postTaskDelayed(errand, delayMillis, Priority.CONTROL);
+    }
+
+    /**
+     * Post a task to the worker
+     *
+     * @param errand The work to do
+     * @param delayMillis How long to wait before the task is ready to run, in milliseconds
+     * @param priority The lane the task waits in once it is ready
+     *
+     * @return A handle to the task, which may be used to cancel it
+     */
+    Task postTaskDelayed(final Runnable errand, long delayMillis, Priority priority) {
+        Task task = new Task(this, errand, priority);
+        tasks.add(task);
+
+        if (delayMillis <= 0) {
+            // Ready now, so it can compete with the other ready tasks for its turn straight away
+            task.set(Task.QUEUED);
+            enqueue(task);
+            scheduleDrain();
+        } else {
+            task.future = executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+
+            if (task.isCancelled()) {
+                // Cancelled while it was being scheduled
+                task.future.cancel(false);
+            }
+        }
+
+        return task;
+    }
+
+    /**
+     * @return The number of tasks that have been posted and have not finished or been cancelled yet
+     */
+    int getPendingTaskCount() {
+        return tasks.size();
+    }
+
+    /**
+     * @param priority The lane to inspect
+     *
+     * @return The number of tasks of this priority that are ready and waiting for their turn
+     */
+    public int getQueueDepth(Priority priority) {
+        return depth[priority.ordinal()].get();
+    }
+
+    /**
+     * @param priority The lane to inspect
+     *
+     * @return The average time the tasks of this priority waited in their lane before running, in milliseconds
+     */
+    public long getAverageWaitMillis(Priority priority) {
+        int index = priority.ordinal();
+        long completed = completedTasks[index].get();
+
+        if (0 == completed) {
+            return 0;
+        }
+
+        return totalWaitMillis[index].get() / completed;
     }
 
     void start() {
     }
 
 
+    private void enqueue(Task task) {
+        int index = task.priority.ordinal();
+        task.readyAt = System.currentTimeMillis();
+        depth[index].incrementAndGet();
+        lanes[index].offer(task);
+    }
+
+    private void scheduleDrain() {
+        if (drainState.compareAndSet(IDLE, RUNNING)) {
+            executor.execute(drainer);
+        }
+    }
+
+    /**
+     * Run the ready tasks in priority order until the lanes are empty, the admission holds back the next task, or
+     * this worker has had its fair share of the shared thread. Only one drain of a worker runs at any time.
+     */
+    private void drain() {
+        int budget = MAX_TASKS_PER_TURN;
+
+        while (true) {
+            Task next = peekNext();
+
+            if (null == next) {
+                drainState.set(IDLE);
+
+                // A task may have become ready after the lanes were checked but before the state was updated
+                if ((null != peekNext()) && drainState.compareAndSet(IDLE, RUNNING)) {
+                    continue;
+                }
+
+                return;
+            }
+
+            if (0 == budget--) {
+                executor.execute(drainer);
+                return;
+            }
+
+            Admission currentAdmission = admission;
+            long delayMillis = (null != currentAdmission) ? currentAdmission.admissionDelay() : 0;
+
+            if (delayMillis > 0) {
+                drainState.set(PAUSED);
+
+                // A wake up may have arrived after the admission was asked but before the state was updated
+                if ((0 == currentAdmission.admissionDelay()) && drainState.compareAndSet(PAUSED, RUNNING)) {
+                    continue;
+                }
+
+                executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        wake();
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+
+                return;
+            }
+
+            runNext();
+        }
+    }
+
+    /**
+     * @return The task that will run next, or null if no tasks are ready
+     */
+    private Task peekNext() {
+        for (ConcurrentLinkedQueue<Task> eachLane : lanes) {
+            Task head;
+
+            while ((null != (head = eachLane.peek())) && head.isCancelled()) {
+                // Cancelled tasks are discarded when they reach the head of their lane
+                eachLane.poll();
+            }
+
+            if (null != head) {
+                return head;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Run the oldest task of the highest priority lane. Cancelled tasks are left in their lane and skipped here.
+     */
+    private void runNext() {
+        for (ConcurrentLinkedQueue<Task> eachLane : lanes) {
+            Task next;
+
+            while (null != (next = eachLane.poll())) {
+                if (next.compareAndSet(Task.QUEUED, Task.RUNNING)) {
+                    int index = next.priority.ordinal();
+                    depth[index].decrementAndGet();
+                    totalWaitMillis[index].addAndGet(System.currentTimeMillis() - next.readyAt);
+                    completedTasks[index].incrementAndGet();
+
+                    try {
+                        next.errand.run();
+                    } catch (RuntimeException e) {
+                        Log.error(TAG + "Task failed: " + e.getMessage());
+                    } finally {
+                        next.set(Task.DONE);
+                        tasks.remove(next);
+                    }
+
+                    return;
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,233 @@
+/**
+ * Copyright 2015, Digium, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under The MIT License found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * For all details and documentation:  https://www.respoke.io
+ */
+
+package com.digium.respokesdk.RestAPI;
+
+import com.phono.srtplight.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Runs the REST transactions of every client in the process on a bounded
+ * number of threads, so that a burst of transactions, i.e. many clients
+ * reconnecting at once, queues up instead of starting a thread each.
+ * Transactions beyond the queue limit are rejected and fail straight away.
+ * On runtimes that support them the threads may be virtual threads.
+ */
+public class APIExecutor {
+
+    private static final String TAG = "APIExecutor: ";
+    private static final int DEFAULT_MAX_THREADS = 4;
+    private static final int DEFAULT_MAX_QUEUED = 256;
+    private static final long IDLE_TIMEOUT_SECONDS = 30;  ///< How long an idle thread is kept for the next transaction
+
+    private static APIExecutor _instance;
+
+    /**
+     * A queued transaction, stamped with the time it was queued
+     */
+    private class QueuedTask implements Runnable {
+
+        final Runnable task;
+        final long queuedAt;
+
+        QueuedTask(Runnable task) {
+            this.task = task;
+            queuedAt = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            totalWaitNanos.addAndGet(System.nanoTime() - queuedAt);
+            startedCount.incrementAndGet();
+            task.run();
+        }
+    }
+
+    private ThreadPoolExecutor executor;
+    private int maxThreads;
+    private int maxQueued;
+    private boolean useVirtualThreads;
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong startedCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    protected APIExecutor() {
+        maxThreads = DEFAULT_MAX_THREADS;
+        maxQueued = DEFAULT_MAX_QUEUED;
+    }
+
+    public static synchronized APIExecutor sharedInstance() {
+        if (_instance == null) {
+            _instance = new APIExecutor();
+        }
+
+        return _instance;
+    }
+
+    /**
+     * @param threadCount The number of transactions that may run at the same time. Defaults to 4
+     */
+    public synchronized void setMaxThreads(int threadCount) {
+        maxThreads = Math.max(1, threadCount);
+
+        if (null != executor) {
+            if (maxThreads > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(maxThreads);
+                executor.setCorePoolSize(maxThreads);
+            } else {
+                executor.setCorePoolSize(maxThreads);
+                executor.setMaximumPoolSize(maxThreads);
+            }
+        }
+    }
+
+    public synchronized int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * Set how many transactions may wait for a thread. Transactions already
+     * queued are still run, even if there are more of them than the new limit.
+     *
+     * @param queueLimit The number of transactions that may wait. Defaults to 256
+     */
+    public synchronized void setMaxQueued(int queueLimit) {
+        maxQueued = Math.max(1, queueLimit);
+    }
+
+    public synchronized int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * Run the transactions on virtual threads where the runtime supports
+     * them, otherwise on daemon threads. The number of transactions running
+     * at the same time is bounded either way. Threads that are already
+     * running are kept until they have been idle for a while.
+     *
+     * @param shouldUseVirtualThreads true to use virtual threads if available
+     */
+    public synchronized void setUseVirtualThreads(boolean shouldUseVirtualThreads) {
+        if (useVirtualThreads != shouldUseVirtualThreads) {
+            useVirtualThreads = shouldUseVirtualThreads;
+
+            if (null != executor) {
+                executor.setThreadFactory(threadFactory());
+            }
+        }
+    }
+
+    public synchronized boolean getUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    /**
+     * @return The number of transactions running right now
+     */
+    public synchronized int getActiveCount() {
+        return (null != executor) ? executor.getActiveCount() : 0;
+    }
+
+    /**
+     * @return The number of transactions waiting for a thread
+     */
+    public synchronized int getQueueDepth() {
+        return (null != executor) ? executor.getQueue().size() : 0;
+    }
+
+    /**
+     * @return The number of transactions that failed because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return The average time transactions waited for a thread, in milliseconds
+     */
+    public long getAverageQueueWait() {
+        long started = startedCount.get();
+
+        return (started > 0) ? TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / started) : 0;
+    }
+
+    /**
+     * Queue a transaction
+     *
+     * @param task The transaction to run
+     *
+     * @return A handle with which the transaction may be removed from the queue
+     *
+     * @throws RejectedExecutionException if the queue is full
+     */
+    synchronized Runnable execute(Runnable task) {
+        if (null == executor) {
+            // The queue itself is unbounded so that the limit can change in place, it is enforced below instead
+            executor = new ThreadPoolExecutor(maxThreads, maxThreads, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), threadFactory());
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        if (executor.getQueue().size() >= maxQueued) {
+            rejectedCount.incrementAndGet();
+            throw new RejectedExecutionException("Too many transactions waiting for a thread");
+        }
+
+        QueuedTask queuedTask = new QueuedTask(task);
+        executor.execute(queuedTask);
+
+        return queuedTask;
+    }
+
+    /**
+     * Remove a transaction that has not started yet from the queue
+     *
+     * @param handle The handle returned when the transaction was queued
+     *
+     * @return true if the transaction was removed before it started
+     */
+    synchronized boolean remove(Runnable handle) {
+        return (null != executor) && executor.remove(handle);
+    }
+
+    private ThreadFactory threadFactory() {
+        if (useVirtualThreads) {
+            try {
+                // Looked up by reflection, virtual threads are only available from Java 21
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "RespokeAPI-", 1L);
+
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (Exception e) {
+                Log.debug(TAG + "Virtual threads are not available, using platform threads");
+            }
+        }
+
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RespokeAPI-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -17,7 +17,7 @@ import org.json.JSONException;
 
 public class APIGetToken extends APITransaction {
 
-    private static final String DEFAULT_TTL = "21600";
+    public static final int DEFAULT_TTL = 21600;  ///< How long the requested tokens are valid, in seconds
 
     public String appID;
     public String endpointID;
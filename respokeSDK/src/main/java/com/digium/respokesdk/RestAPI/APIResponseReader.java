@@ -0,0 +1,186 @@
+/**
+ * Copyright 2015, Digium, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under The MIT License found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * For all details and documentation:  https://www.respoke.io
+ */
+
+package com.digium.respokesdk.RestAPI;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+
+/**
+ * Decodes a UTF-8 response body for the JSON parser as it arrives, through
+ * buffers that are reused from one response to the next, so that parsing a
+ * response takes a single pass and builds no intermediate string. It reads
+ * one character at a time without allocating, which is how the parser
+ * consumes it.
+ */
+class APIResponseReader extends Reader {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private InputStream stream;
+    private boolean endOfStream;
+    private boolean decoded;  ///< The whole response has been decoded
+    private int markPosition = -1;
+    private int markLimit;  ///< The number of characters that may be read after the mark before it may be invalidated
+
+    /**
+     * Start reading a new response
+     *
+     * @param newStream The response body
+     */
+    void open(InputStream newStream) {
+        stream = newStream;
+        endOfStream = false;
+        decoded = false;
+        markPosition = -1;
+        bytes.clear();
+        chars.clear();
+        chars.flip();
+        decoder.reset();
+    }
+
+    /**
+     * Let go of the response, without closing it
+     */
+    void release() {
+        stream = null;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!chars.hasRemaining() && !fill()) {
+            return -1;
+        }
+
+        return chars.get();
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) throws IOException {
+        if (0 == length) {
+            return 0;
+        }
+
+        if (!chars.hasRemaining() && !fill()) {
+            return -1;
+        }
+
+        int count = Math.min(length, chars.remaining());
+        chars.get(buffer, offset, count);
+
+        return count;
+    }
+
+    /**
+     * The characters read since the mark are kept when the buffer is
+     * refilled, until more than the read-ahead limit have been read
+     */
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) {
+        if (readAheadLimit < 0) {
+            throw new IllegalArgumentException("Read-ahead limit < 0");
+        }
+
+        markPosition = chars.position();
+        markLimit = readAheadLimit;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        if (markPosition < 0) {
+            throw new IOException("Mark invalid");
+        }
+
+        chars.position(markPosition);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (null != stream) {
+            stream.close();
+        }
+    }
+
+    /**
+     * Decode the next characters of the response into the character buffer
+     *
+     * @return false if the end of the response has been reached
+     */
+    private boolean fill() throws IOException {
+        if ((null == stream) || decoded) {
+            return false;
+        }
+
+        if ((markPosition >= 0) && (chars.position() - markPosition < markLimit)) {
+            // Move the characters read since the mark to the front, so that reset can still return to them
+            chars.position(markPosition);
+
+            if (chars.capacity() < markLimit + BUFFER_SIZE) {
+                // Grown once for the largest limit, since the buffer is reused for later responses
+                CharBuffer largerChars = CharBuffer.allocate(markLimit + BUFFER_SIZE);
+                largerChars.put(chars);
+                chars = largerChars;
+            } else {
+                chars.compact();
+            }
+
+            markPosition = 0;
+        } else {
+            markPosition = -1;
+            chars.clear();
+        }
+
+        int kept = chars.position();
+
+        while (kept == chars.position()) {
+            if (!endOfStream) {
+                int count = stream.read(bytes.array(), bytes.position(), bytes.remaining());
+
+                if (count < 0) {
+                    endOfStream = true;
+                } else {
+                    bytes.position(bytes.position() + count);
+                }
+            }
+
+            bytes.flip();
+            decoder.decode(bytes, chars, endOfStream);
+            bytes.compact();
+
+            if (endOfStream) {
+                decoder.flush(chars);
+                decoded = true;
+                break;
+            }
+        }
+
+        chars.flip();
+        chars.position(kept);
+
+        return chars.hasRemaining();
+    }
+}
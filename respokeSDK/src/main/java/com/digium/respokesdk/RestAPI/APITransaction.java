@@ -8,27 +8,30 @@
  */
 package com.digium.respokesdk.RestAPI;
 
-import java.io.BufferedReader;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.net.CookieHandler;
-import java.net.CookieManager;
-import java.net.CookiePolicy;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import com.phono.srtplight.Log;
 
 public class APITransaction {
 
     private static final String TAG = "ApiTransaction";
+    private static final ThreadLocal<APIResponseReader> responseReaders = new ThreadLocal<APIResponseReader>() {
+        @Override
+        protected APIResponseReader initialValue() {
+            return new APIResponseReader();
+        }
+    };  ///< The response reader of each executor thread, reused from one transaction to the next
     public static final String RESPOKE_BASE_URL = "https://api.respoke.io";
 
     /**
@@ -50,6 +53,7 @@ public class APITransaction {
     protected String params;
     protected int serverResponseCode;
     private AsyncTransaction asyncTrans;
+    private Runnable queuedTask;  ///< The handle of the transaction in the executor queue
 
     public APITransaction( String baseURL) {
         abort = false;
@@ -61,8 +65,16 @@ public class APITransaction {
 
     public void go() {
         asyncTrans = new AsyncTransaction(this.httpMethod);
-        Thread t = new Thread(asyncTrans);
-        t.start();
+
+        try {
+            // Runs on the threads shared by all transactions rather than a thread of its own
+            queuedTask = APIExecutor.sharedInstance().execute(asyncTrans);
+        } catch (RejectedExecutionException e) {
+            Log.error(TAG + "Too many transactions queued, failing " + baseURL);
+            success = false;
+            errorMessage = "Too many requests waiting to be sent";
+            transactionComplete();
+        }
     }
 
     public void transactionComplete() {
@@ -74,12 +86,16 @@ public class APITransaction {
         if (asyncTrans != null) {
             asyncTrans.cancel();
         }
+        if (queuedTask != null) {
+            // Frees its place in the queue if it has not started yet
+            APIExecutor.sharedInstance().remove(queuedTask);
+        }
     }
 
     private class AsyncTransaction implements Runnable {
 
         final String httpMethod;
-        boolean canceled = false;
+        volatile boolean canceled = false;
 
         AsyncTransaction(String method) {
             httpMethod = method;
@@ -95,24 +111,25 @@ public class APITransaction {
 
         @Override
         public void run() {
+            if (canceled) {
+                return;
+            }
+
             // clear any previous received data
             jsonResult = null;
 
             try {
                 if (params.getBytes("UTF-8").length <= bodySizeLimit) {
-                    try {
-                        //accept no cookies
-                        CookieManager cookieManager = new CookieManager();
-                        cookieManager.setCookiePolicy(CookiePolicy.ACCEPT_NONE);
-                        CookieHandler.setDefault(cookieManager);
-
-                        System.setProperty("http.keepAlive", "false");
+                    // Set once the response has been read to the end, so that the connection may be kept alive for the next request
+                    boolean reusable = false;
 
+                    try {
                         URI uri = new URI(baseURL.replace(" ", "%20"));
                         URL url = new URL(uri.toASCIIString());
                         Log.verb("API transaction url "+url.toString());
 
-                        connection = (HttpURLConnection) url.openConnection();
+                        // The SDK transport sets no cookie handler or keep-alive policy for the rest of the process
+                        connection = APITransport.sharedInstance().open(url);
 
                         // Allow Inputs & Outputs
                         connection.setRequestMethod(httpMethod);
@@ -139,17 +156,13 @@ public class APITransaction {
                         if (serverResponseCode == 200) {
                             success = true;
 
-                            // Parse the response data into a string
-                            String receivedString = readResponse(connection.getInputStream());
-
-                            if (receivedString != null) {
-                                try {
-                                    // Parse the response string into JSON objects
-                                    jsonResult = new JSONObject(receivedString);
-                                } catch (JSONException e) {
-                                    errorMessage = "Error deserializing response";
-                                    success = false;
-                                }
+                            // Parse the response into JSON objects as it arrives
+                            jsonResult = readResponse(connection.getInputStream());
+                            reusable = (null != jsonResult);
+
+                            if (null == jsonResult) {
+                                errorMessage = "Error deserializing response";
+                                success = false;
                             }
                         } else {
                             throw new IOException(Integer.toString(serverResponseCode));
@@ -165,6 +178,10 @@ public class APITransaction {
                             serverResponseCode = connection.getResponseCode();
                             String serverResponseMessage = connection.getResponseMessage();
 
+                            // The error body is not used, but reading it keeps the connection alive
+                            APITransport.drain(connection.getErrorStream());
+                            reusable = (serverResponseCode > 0);
+
                             if (serverResponseCode == 401) {
                                 errorMessage = "API authentication error";
                             } else if (serverResponseCode == 429) {
@@ -188,7 +205,7 @@ public class APITransaction {
                         errorMessage = "An unknown problem occurred";
                         success = false;
                     } finally {
-                        if (connection != null) {
+                        if ((connection != null) && (!reusable || canceled)) {
                             connection.disconnect();
                         }
                     }
@@ -200,32 +217,38 @@ public class APITransaction {
                 errorMessage = "Unable to encode message";
                 success = false;
             }
-            Log.verb("API transaction got "+jsonResult.toString(4));
+            if ((Log.getLevel() >= Log.VERB) && (null != jsonResult)) {
+                // Only pretty print the result when it is going to be logged
+                Log.verb("API transaction got "+jsonResult.toString(4));
+            }
             if (!canceled) {
                 transactionComplete();
             }
         }
 
-        private String readResponse(InputStream stream) {
-            String receivedString = null;
+        /**
+         * Parse a response body straight from the stream, and read it to the end
+         *
+         * @return The response, or null if it could not be read or parsed
+         */
+        private JSONObject readResponse(InputStream stream) {
+            APIResponseReader reader = responseReaders.get();
+            JSONObject result = null;
 
             try {
-                BufferedReader br = new BufferedReader(new InputStreamReader(stream));
-                StringBuilder sb = new StringBuilder();
-                String line;
-
-                while ((line = br.readLine()) != null) {
-                    if (canceled ) break;
-                    sb.append(line).append("\n");
-                }
-
-                br.close();
-                receivedString = sb.toString();
-            } catch (IOException ioe) {
-                // Do nothing
+                reader.open(stream);
+                result = new JSONObject(new JSONTokener(reader));
+            } catch (JSONException e) {
+                // Also thrown when reading the stream fails, i.e. because the transaction was canceled
+                Log.debug(TAG + "Unable to parse response: " + e.getMessage());
+            } finally {
+                reader.release();
             }
 
-            return receivedString;
+            // Anything after the JSON is discarded, which also keeps the connection alive
+            APITransport.drain(stream);
+
+            return canceled ? null : result;
         }
     }
 }
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2015, Digium, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under The MIT License found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * For all details and documentation:  https://www.respoke.io
+ */
+
+package com.digium.respokesdk.RestAPI;
+
+import com.phono.srtplight.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.NoSuchAlgorithmException;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+
+
+/**
+ * Opens the HTTP connections of the REST transactions without changing any
+ * JVM wide setting. Responses are read to the end and closed rather than
+ * disconnected, so that the runtime keeps the connection alive and hands it
+ * to the next request to the same host. The connections use the TLS setup of
+ * the app, i.e. a socket factory it installed as the default, unless the app
+ * gives the SDK a TLS context of its own with setSSLContext.
+ */
+public class APITransport {
+
+    private static final String TAG = "APITransport: ";
+    private static final int DEFAULT_CONNECT_TIMEOUT = 15000;
+    private static final int DEFAULT_READ_TIMEOUT = 30000;
+
+    private static APITransport _instance;
+
+    private SSLContext sslContext;  ///< The TLS context the app set for the SDK, or null to use the defaults
+    private int connectTimeout;
+    private int readTimeout;
+
+    protected APITransport() {
+        connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+        readTimeout = DEFAULT_READ_TIMEOUT;
+    }
+
+    public static synchronized APITransport sharedInstance() {
+        if (_instance == null) {
+            _instance = new APITransport();
+        }
+
+        return _instance;
+    }
+
+    /**
+     * Use a TLS context of its own for the connections to the Respoke
+     * service, i.e. one with a trust store for a private deployment. By
+     * default the REST connections use the default socket factory of the
+     * platform, and the socket uses the default TLS context.
+     *
+     * @param context The context, or null to use the defaults
+     */
+    public synchronized void setSSLContext(SSLContext context) {
+        sslContext = context;
+    }
+
+    /**
+     * Get the TLS context of the connections to the Respoke service. Sharing
+     * it lets every connection to a host resume the TLS session of an
+     * earlier one, which saves a round trip of the handshake.
+     *
+     * @return The context set with setSSLContext, otherwise the default
+     * context, or null if TLS is not available
+     */
+    public synchronized SSLContext getSSLContext() {
+        if (null != sslContext) {
+            return sslContext;
+        }
+
+        try {
+            return SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            Log.error(TAG + "Unable to get the default TLS context: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param connectMillis How long to wait for a connection to be established, in milliseconds
+     * @param readMillis How long to wait for the response, in milliseconds
+     */
+    public synchronized void setTimeouts(int connectMillis, int readMillis) {
+        connectTimeout = Math.max(0, connectMillis);
+        readTimeout = Math.max(0, readMillis);
+    }
+
+    /**
+     * Open a connection for a request. The runtime reuses a kept alive
+     * connection to the same host if there is one.
+     *
+     * @param url The url of the request
+     *
+     * @return The connection, configured with the timeouts, and the TLS context if one was set
+     *
+     * @throws IOException if the connection can not be opened
+     */
+    public HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+        synchronized (this) {
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+
+            // Otherwise the connection keeps the default socket factory, which the app may have replaced
+            if ((connection instanceof HttpsURLConnection) && (null != sslContext)) {
+                ((HttpsURLConnection) connection).setSSLSocketFactory(sslContext.getSocketFactory());
+            }
+        }
+
+        return connection;
+    }
+
+    /**
+     * Read the rest of a response and close it, so that its connection may
+     * be kept alive for the next request
+     *
+     * @param stream The response or error stream, or null
+     */
+    public static void drain(InputStream stream) {
+        if (null != stream) {
+            try {
+                byte[] buffer = new byte[512];
+
+                while (stream.read(buffer) >= 0) {
+                    // Discard the rest of the response
+                }
+            } catch (IOException e) {
+                // The connection will not be reused
+            } finally {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // Nothing more to do
+                }
+            }
+        }
+    }
+}
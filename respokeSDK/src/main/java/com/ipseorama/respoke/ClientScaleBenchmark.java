@@ -0,0 +1,89 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ipseorama.respoke;
+
+import com.digium.respokesdk.Respoke;
+import com.digium.respokesdk.RespokeClient;
+import com.digium.respokesdk.RespokeSignalingChannel;
+import com.digium.respokesdk.RestAPI.APITransaction;
+import com.phono.srtplight.Log;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the threads and heap used by many clients hosted in one JVM.
+ * Every client gets a signaling channel and queues a request on its worker,
+ * without touching the network. The channels have no socket, so each
+ * request is scheduled on the shared threads and then fails straight away
+ * when the worker runs it. The elapsed time is therefore the cost of
+ * scheduling a task per worker, not of sending real requests.
+ *
+ * Usage: ClientScaleBenchmark [clientCount]
+ *
+ * @author Westhawk Ltd thp@westhawk.co.uk
+ */
+public class ClientScaleBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        Log.setLevel(Log.ERROR);
+        int clientCount = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long heapBefore = usedHeap();
+
+        ArrayList<RespokeSignalingChannel> channels = new ArrayList<RespokeSignalingChannel>();
+        final CountDownLatch completed = new CountDownLatch(clientCount);
+        long start = System.nanoTime();
+
+        for (int ii = 0; ii < clientCount; ii++) {
+            RespokeClient client = Respoke.sharedInstance().createClient();
+            RespokeSignalingChannel channel = new RespokeSignalingChannel("benchmark-token", client, APITransaction.RESPOKE_BASE_URL);
+
+            // Pretend the socket is up so that the request is queued on the worker. With no socket to emit on, the worker fails it
+            channel.connected = true;
+            channel.sendRESTMessage("get", "/v1/endpoints", null, new RespokeSignalingChannel.RESTListener() {
+                @Override
+                public void onSuccess(Object response) {
+                    completed.countDown();
+                }
+
+                @Override
+                public void onError(String errorMessage) {
+                    completed.countDown();
+                }
+            });
+
+            channels.add(channel);
+        }
+
+        if (!completed.await(60, TimeUnit.SECONDS)) {
+            System.out.println("Timed out waiting for the workers");
+        }
+
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+        long heapAfter = usedHeap();
+        double perThousand = 1000.0 / clientCount;
+
+        System.out.println("clients:               " + clientCount);
+        System.out.println("elapsed (scheduling):  " + elapsedMillis + " ms");
+        System.out.println("threads before/after:  " + threadsBefore + " / " + threadsAfter);
+        System.out.println("threads per 1k:        " + Math.round((threadsAfter - threadsBefore) * perThousand));
+        System.out.println("heap per 1k:           " + Math.round((heapAfter - heapBefore) * perThousand / 1024) + " KB");
+        System.out.println("channels alive:        " + channels.size());
+    }
+
+    private static long usedHeap() {
+        for (int ii = 0; ii < 3; ii++) {
+            System.gc();
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ipseorama.respoke;
+
+import com.digium.respokesdk.Respoke;
+import com.digium.respokesdk.RespokeClient;
+import com.digium.respokesdk.RespokeConnection;
+import com.phono.srtplight.Log;
+import java.util.Random;
+
+/**
+ * Measures the cost of the endpoint and connection lookups that every inbound
+ * message, presence and group event goes through, for roster sizes from 100
+ * to 100k known endpoints.
+ *
+ * Usage: EndpointLookupBenchmark [lookupCount]
+ *
+ * @author Westhawk Ltd thp@westhawk.co.uk
+ */
+public class EndpointLookupBenchmark {
+
+    private static final int[] ROSTER_SIZES = {100, 1000, 10000, 100000};
+
+    public static void main(String[] args) {
+        Log.setLevel(Log.ERROR);
+        int lookupCount = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+
+        for (int rosterSize : ROSTER_SIZES) {
+            RespokeClient client = Respoke.sharedInstance().createClient();
+
+            for (int ii = 0; ii < rosterSize; ii++) {
+                client.getConnection("connection-" + ii, "endpoint-" + ii, false);
+            }
+
+            // Warm up, then measure
+            lookup(client, rosterSize, lookupCount);
+            long start = System.nanoTime();
+            int found = lookup(client, rosterSize, lookupCount);
+            long elapsed = System.nanoTime() - start;
+
+            System.out.println("roster " + rosterSize + ": " + (elapsed / lookupCount) + " ns per lookup (" + found + " found)");
+            Respoke.sharedInstance().unregisterClient(client);
+        }
+    }
+
+    private static int lookup(RespokeClient client, int rosterSize, int lookupCount) {
+        Random random = new Random(42);
+        int found = 0;
+
+        for (int ii = 0; ii < lookupCount; ii++) {
+            int index = random.nextInt(rosterSize);
+            RespokeConnection connection = client.getConnection("connection-" + index, "endpoint-" + index, true);
+
+            if (null != connection) {
+                found++;
+            }
+        }
+
+        return found;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ipseorama.respoke;
+
+import com.digium.respokesdk.RespokeEventDecoder;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Date;
+
+/**
+ * Compares the cost of pulling the fields out of presence and pubsub frames
+ * with the getter chain the signaling channel used to use, and with the
+ * event decoder. Malformed frames are timed separately, since the getters
+ * report them by throwing. The first rounds serve as the warm up.
+ *
+ * Usage: EventDecodeBenchmark [frameCount]
+ *
+ * @author Westhawk Ltd thp@westhawk.co.uk
+ */
+public class EventDecodeBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    private static Object sink;
+
+    public static void main(String[] args) throws JSONException {
+        int frameCount = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+
+        JSONObject presence = new JSONObject("{\"type\":\"available\",\"header\":{\"from\":\"alice\",\"fromConnection\":\"c0ffee\",\"type\":\"presence\"}}");
+        JSONObject pubsub = new JSONObject("{\"message\":\"hello group\",\"header\":{\"from\":\"alice\",\"channel\":\"lobby\",\"timestamp\":1431357458000,\"type\":\"pubsub\"}}");
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long getterNanos = timeGetters(presence, pubsub, frameCount);
+            long decoderNanos = timeDecoder(presence, pubsub, frameCount);
+
+            System.out.println("round " + round + ": getters " + (getterNanos / frameCount) + " ns/frame, decoder " + (decoderNanos / frameCount) + " ns/frame");
+        }
+
+        JSONObject malformed = new JSONObject("{\"type\":\"available\",\"header\":{\"from\":\"alice\"}}");
+        int malformedCount = frameCount / 10;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long getterNanos = timeMalformedGetters(malformed, malformedCount);
+            long decoderNanos = timeDecoder(malformed, malformed, malformedCount);
+
+            System.out.println("malformed round " + round + ": getters " + (getterNanos / malformedCount) + " ns/frame, decoder " + (decoderNanos / malformedCount) + " ns/frame");
+        }
+    }
+
+    private static long timeMalformedGetters(JSONObject frame, int frameCount) {
+        long start = System.nanoTime();
+
+        for (int ii = 0; ii < frameCount; ii++) {
+            try {
+                JSONObject header = frame.getJSONObject("header");
+                sink = frame.getString("type") + header.getString("from") + header.getString("fromConnection");
+            } catch (JSONException e) {
+                sink = e;
+            }
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    private static long timeGetters(JSONObject presence, JSONObject pubsub, int frameCount) throws JSONException {
+        long start = System.nanoTime();
+
+        for (int ii = 0; ii < frameCount; ii++) {
+            if (0 == (ii & 1)) {
+                JSONObject header = presence.getJSONObject("header");
+                sink = presence.getString("type") + header.getString("from") + header.getString("fromConnection");
+            } else {
+                JSONObject header = pubsub.getJSONObject("header");
+                Date messageDate = header.isNull("timestamp") ? new Date() : new Date(header.getLong("timestamp"));
+                sink = pubsub.getString("message") + header.getString("from") + header.getString("channel") + messageDate.getTime();
+            }
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    private static long timeDecoder(JSONObject presence, JSONObject pubsub, int frameCount) {
+        RespokeEventDecoder decoder = new RespokeEventDecoder();
+        RespokeEventDecoder.Event event = new RespokeEventDecoder.Event();
+        long start = System.nanoTime();
+
+        for (int ii = 0; ii < frameCount; ii++) {
+            if (0 == (ii & 1)) {
+                decoder.decodePresence(presence, event);
+                sink = event.presence + event.endpointID + event.connectionID;
+            } else {
+                decoder.decodePubsub(pubsub, event);
+                Date messageDate = (0 != event.timestamp) ? new Date(event.timestamp) : new Date();
+                sink = event.body + event.endpointID + event.groupID + messageDate.getTime();
+            }
+        }
+
+        return System.nanoTime() - start;
+    }
+}
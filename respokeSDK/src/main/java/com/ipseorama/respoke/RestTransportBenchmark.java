@@ -0,0 +1,164 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ipseorama.respoke;
+
+import com.digium.respokesdk.RestAPI.APIDoOpen;
+import com.digium.respokesdk.RestAPI.APIGetToken;
+import com.phono.srtplight.Log;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Times the token and session-token requests of a development mode connect
+ * against a local stand-in for the REST API, once the way APITransaction
+ * used to send them, with a new connection per request, and once through
+ * the SDK transport, which keeps the connection alive. The stand-in server
+ * holds the first response on every new connection for the given delay, to
+ * stand for the TCP and TLS handshakes of a real network.
+ *
+ * Usage: RestTransportBenchmark [connectCount] [handshakeDelayMillis]
+ *
+ * @author Westhawk Ltd thp@westhawk.co.uk
+ */
+public class RestTransportBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        Log.setLevel(Log.ERROR);
+        int connectCount = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        final int handshakeDelay = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+
+        // Answer without waiting for delayed acknowledgements, which would dwarf everything else on the loopback
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        final Set<String> knownPeers = Collections.synchronizedSet(new HashSet<String>());
+        final AtomicInteger connectionCount = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                while (in.read() >= 0) {
+                    // Discard the form
+                }
+                in.close();
+
+                if (knownPeers.add(exchange.getRemoteAddress().toString())) {
+                    connectionCount.incrementAndGet();
+
+                    try {
+                        Thread.sleep(handshakeDelay);
+                    } catch (InterruptedException e) {
+                        // Answer straight away
+                    }
+                }
+
+                String path = exchange.getRequestURI().getPath();
+                byte[] body = (path.endsWith("/v1/tokens") ? "{\"tokenId\":\"benchmark-token\"}" : "{\"token\":\"benchmark-app-token\"}").getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+
+        String baseURL = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            knownPeers.clear();
+            connectionCount.set(0);
+            long start = System.nanoTime();
+            for (int ii = 0; ii < connectCount; ii++) {
+                fetchTokensOneConnectionEach(baseURL);
+            }
+            long beforeMicros = (System.nanoTime() - start) / 1000 / connectCount;
+            int beforeConnections = connectionCount.get();
+
+            knownPeers.clear();
+            connectionCount.set(0);
+            start = System.nanoTime();
+            for (int ii = 0; ii < connectCount; ii++) {
+                fetchTokensWithTransport(baseURL);
+            }
+            long afterMicros = (System.nanoTime() - start) / 1000 / connectCount;
+            int afterConnections = connectionCount.get();
+
+            System.out.println("round " + round + ": connection per request " + beforeMicros + " us/connect (" + beforeConnections + " connections), "
+                    + "SDK transport " + afterMicros + " us/connect (" + afterConnections + " connections)");
+        }
+
+        server.stop(0);
+    }
+
+    /**
+     * The requests as APITransaction used to send them, when it turned off
+     * keep-alive for the whole process
+     */
+    private static void fetchTokensOneConnectionEach(String baseURL) throws IOException {
+        post(baseURL + "/v1/tokens", "appId=app&endpointId=endpoint&ttl=" + APIGetToken.DEFAULT_TTL);
+        post(baseURL + "/v1/session-tokens", "tokenId=benchmark-token");
+    }
+
+    private static void post(String url, String params) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        // What http.keepAlive=false made the runtime send
+        connection.setRequestProperty("Connection", "close");
+        OutputStream out = connection.getOutputStream();
+        out.write(params.getBytes("UTF-8"));
+        out.close();
+
+        InputStream in = connection.getInputStream();
+        while (in.read() >= 0) {
+            // Read the whole response
+        }
+        in.close();
+        connection.disconnect();
+    }
+
+    private static void fetchTokensWithTransport(final String baseURL) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        APIGetToken getToken = new APIGetToken(baseURL) {
+            @Override
+            public void transactionComplete() {
+                super.transactionComplete();
+
+                APIDoOpen doOpen = new APIDoOpen(baseURL) {
+                    @Override
+                    public void transactionComplete() {
+                        super.transactionComplete();
+                        done.countDown();
+                    }
+                };
+                doOpen.tokenID = token;
+                doOpen.go();
+            }
+        };
+        getToken.appID = "app";
+        getToken.endpointID = "endpoint";
+        getToken.go();
+
+        done.await();
+    }
+}